@@ -0,0 +1,99 @@
+package p2p.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.utils.BoundaryMatcher;
+import p2p.utils.StreamingMultiparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original nested-loop findSequence with the Horspool matcher, and measures
+ * a full streaming parse of a single-file body of the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class BoundarySearchBenchmark {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1048576", "104857600", "1073741824"})
+    public int size;
+
+    private byte[] body;
+    private byte[] delimiter;
+    private BoundaryMatcher matcher;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"video.mp4\"\r\n"
+                + "Content-Type: video/mp4\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+        body = new byte[size];
+        new Random(7).nextBytes(body);
+        System.arraycopy(head, 0, body, 0, head.length);
+        System.arraycopy(tail, 0, body, size - tail.length, tail.length);
+
+        delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.ISO_8859_1);
+        matcher = new BoundaryMatcher(delimiter);
+    }
+
+    @Benchmark
+    public int naiveFindSequence() {
+        return findSequence(body, delimiter, 0);
+    }
+
+    @Benchmark
+    public int horspool() {
+        return matcher.indexOf(body, 0, body.length);
+    }
+
+    @Benchmark
+    public long streamingParse() throws IOException {
+        StreamingMultiparser parser = new StreamingMultiparser(new ByteArrayInputStream(body), BOUNDARY);
+        return parser.nextPart().transferTo(new DiscardChannel());
+    }
+
+    /** The search loop Multiparser used before the streaming parser replaced it. */
+    private static int findSequence(byte[] data, byte[] sequence, int startPos) {
+        outer:
+        for (int i = startPos; i <= data.length - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (data[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
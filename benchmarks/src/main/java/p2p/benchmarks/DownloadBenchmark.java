@@ -0,0 +1,108 @@
+package p2p.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.controller.FileController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end latency of GET /download/{code} through the HttpServer, the peer hop and back,
+ * for a log file sent as is and gzip-encoded on the fly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    private static final int API_PORT = 18082;
+    private static final int TRANSFER_PORT = 19092;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({"identity", "gzip"})
+    public String acceptEncoding;
+
+    @Param({"jdk", "async"})
+    public String transport;
+
+    private FileController controller;
+    private HttpClient client;
+    private HttpRequest download;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        System.setProperty("p2p.http", transport);
+        controller = new FileController(API_PORT, TRANSFER_PORT);
+        controller.start();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        String code = upload(logContent(size));
+        download = HttpRequest.newBuilder(URI.create("http://localhost:" + API_PORT + "/download/" + code))
+                .header("Accept-Encoding", acceptEncoding)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        controller.stop();
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        HttpResponse<InputStream> response = client.send(download, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            long received = 0;
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                received += read;
+            }
+            return received;
+        }
+    }
+
+    private static byte[] logContent(int size) {
+        StringBuilder log = new StringBuilder(size + 128);
+        Random random = new Random(13);
+        while (log.length() < size) {
+            log.append("2026-01-01T12:00:00Z INFO request id=").append(random.nextInt(1_000_000))
+                    .append(" path=/api/items/").append(random.nextInt(1000)).append(" status=200\n");
+        }
+        log.setLength(size);
+        return log.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String upload(byte[] content) throws IOException, InterruptedException {
+        String boundary = "downloadbenchboundary";
+        byte[] head = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.log\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new byte[head.length + content.length + tail.length];
+        System.arraycopy(head, 0, body, 0, head.length);
+        System.arraycopy(content, 0, body, head.length, content.length);
+        System.arraycopy(tail, 0, body, head.length + content.length, tail.length);
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + API_PORT + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        String response = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        Matcher matcher = Pattern.compile("\"code\":\"([0-9a-z]+)\"").matcher(response);
+        if (!matcher.find()) throw new IllegalStateException("Upload failed: " + response);
+        return matcher.group(1);
+    }
+}
@@ -0,0 +1,80 @@
+package p2p.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.service.BlobStore;
+import p2p.service.FileSharer;
+import p2p.service.Share;
+import p2p.service.ShareJournal;
+import p2p.service.SharedFile;
+import p2p.utils.UploadUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold start against a journal of a million shares: replaying the records alone,
+ * and rebuilding the whole FileSharer index including the blob references.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class JournalStartupBenchmark {
+
+    @Param({"1000000"})
+    public int shares;
+
+    private Path root;
+    private Path journalPath;
+    private ShareJournal journal;
+
+    @Setup(Level.Trial)
+    public void writeJournal() throws IOException {
+        root = Files.createTempDirectory("journal-bench-");
+        journalPath = root.resolve("shares.journal");
+        Random random = new Random(3);
+        byte[] digest = new byte[32];
+        try (ShareJournal writer = new ShareJournal(journalPath)) {
+            writer.replay(file -> { });
+            for (int i = 0; i < shares; i++) {
+                String code = UploadUtils.generateCode();
+                random.nextBytes(digest);
+                String hash = HexFormat.of().formatHex(digest);
+                SharedFile file = new SharedFile("file-" + i + ".bin", root.resolve("blobs").resolve(hash).toString(), random.nextInt(1 << 30), hash);
+                Share share = new Share(List.of(file), 10, 0, released -> { });
+                writer.recordOffer(code, share);
+                // Some churn, as a live journal would have between compactions
+                if (i % 4 == 0) writer.recordDownload(code, 0, 1);
+                if (i % 8 == 0) writer.recordRemove(code);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openJournal() throws IOException {
+        journal = new ShareJournal(journalPath);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeJournal() throws IOException {
+        journal.close();
+    }
+
+    @Benchmark
+    public Map<String, Share> replay() {
+        return journal.replay(file -> { });
+    }
+
+    @Benchmark
+    public FileSharer restoreFileSharer() throws IOException {
+        return new FileSharer(0, new BlobStore(root.toString()), journal);
+    }
+}
@@ -0,0 +1,92 @@
+package p2p.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.service.BlobStore;
+import p2p.service.FileSharer;
+import p2p.service.PeerConnection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-file transfers from the FileSharer selector over loopback, read with PeerConnection
+ * into a sink, one at a time and four at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeerTransferBenchmark {
+
+    @Param({"1048576", "67108864"})
+    public int size;
+
+    private Path root;
+    private FileSharer fileSharer;
+    private InetSocketAddress address;
+    private String code;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("peer-bench-");
+        byte[] content = new byte[size];
+        new Random(11).nextBytes(content);
+        Path file = Files.write(root.resolve("payload.bin"), content);
+
+        fileSharer = new FileSharer(0, new BlobStore(root.toString()));
+        fileSharer.start();
+        address = new InetSocketAddress("localhost", fileSharer.getPort());
+        code = fileSharer.offerFile(file.toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fileSharer.stop();
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        return fetch();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long parallelTransfers() throws IOException {
+        return fetch();
+    }
+
+    private long fetch() throws IOException {
+        try (PeerConnection connection = PeerConnection.open(address, code, 0, 0, -1)) {
+            return connection.transferTo(new Sink());
+        }
+    }
+
+    /**
+     * Drops the bytes, so the benchmark measures the transfer and not a copy.
+     */
+    private static class Sink implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package p2p.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.service.BlobStore;
+import p2p.service.FileSharer;
+import p2p.service.ShareJournal;
+import p2p.service.SharedFile;
+import p2p.utils.UploadUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Share code generation and offering under contention from eight threads, with and without
+ * the journal recording every offer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+public class ShareAllocationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean journal;
+
+    private Path root;
+    private BlobStore blobStore;
+    private ShareJournal shareJournal;
+    private FileSharer fileSharer;
+    private List<SharedFile> files;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("allocation-bench-");
+        blobStore = new BlobStore(root.toString());
+        files = List.of(new SharedFile("report.pdf", root.resolve("report.pdf").toString(), 1024));
+    }
+
+    // A fresh index per iteration keeps the map from growing across the whole run
+    @Setup(Level.Iteration)
+    public void newSharer() throws IOException {
+        if (journal) {
+            Path path = root.resolve("shares.journal");
+            Files.deleteIfExists(path);
+            shareJournal = new ShareJournal(path);
+        }
+        fileSharer = new FileSharer(0, blobStore, shareJournal);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeJournal() throws IOException {
+        if (shareJournal != null) shareJournal.close();
+    }
+
+    @Benchmark
+    public String generateCode() {
+        return UploadUtils.generateCode();
+    }
+
+    @Benchmark
+    public String offerFiles() {
+        return fileSharer.offerFiles(files);
+    }
+}
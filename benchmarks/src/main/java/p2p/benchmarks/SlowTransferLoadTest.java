@@ -0,0 +1,134 @@
+package p2p.benchmarks;
+
+import p2p.controller.FileController;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Opens thousands of downloads that read slowly and reports how many the API serves at once.
+ *
+ * Run it once per transport and executor and compare. Virtual threads on the JDK server
+ * pin their carriers while they write to a slow client, so expect that mode to stall once
+ * the slow downloads outnumber the cores:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar p2p.benchmarks.SlowTransferLoadTest 2000
+ * java -Dp2p.executor=virtual -cp benchmarks/target/benchmarks.jar p2p.benchmarks.SlowTransferLoadTest 2000
+ * java -Dp2p.http=async -cp benchmarks/target/benchmarks.jar p2p.benchmarks.SlowTransferLoadTest 2000
+ * </pre>
+ */
+public class SlowTransferLoadTest {
+
+    private static final int API_PORT = 18080;
+    private static final int TRANSFER_PORT = 19090;
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final long READ_PAUSE_MILLIS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        FileController controller = new FileController(API_PORT, TRANSFER_PORT);
+        controller.start();
+        try {
+            String code = upload();
+            System.out.println("Uploaded " + FILE_SIZE + " bytes as share " + code);
+
+            AtomicInteger inFlight = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            AtomicInteger failures = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(clients);
+
+            long start = System.nanoTime();
+            // Clients run on platform threads so they never compete with the server for carriers
+            try (ExecutorService clientThreads = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().factory())) {
+                for (int i = 0; i < clients; i++) {
+                    clientThreads.submit(() -> {
+                        try {
+                            slowDownload(code, inFlight, peak);
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    });
+                }
+                done.await();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.println("http=" + System.getProperty("p2p.http", "jdk")
+                    + " executor=" + System.getProperty("p2p.executor", "default")
+                    + " clients=" + clients
+                    + " peakConcurrentTransfers=" + peak.get()
+                    + " failures=" + failures.get()
+                    + " elapsedMs=" + elapsedMillis);
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private static String upload() throws Exception {
+        String boundary = "loadtestboundary";
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        byte[] head = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"load.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new byte[head.length + content.length + tail.length];
+        System.arraycopy(head, 0, body, 0, head.length);
+        System.arraycopy(content, 0, body, head.length, content.length);
+        System.arraycopy(tail, 0, body, head.length + content.length, tail.length);
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + API_PORT + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        String response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+        Matcher matcher = Pattern.compile("\"code\":\"([0-9a-z]+)\"").matcher(response);
+        if (!matcher.find()) throw new IllegalStateException("Upload failed: " + response);
+        return matcher.group(1);
+    }
+
+    private static void slowDownload(String code, AtomicInteger inFlight, AtomicInteger peak) throws Exception {
+        try (Socket socket = new Socket()) {
+            // A small receive window keeps the server blocked on this client for the whole transfer
+            socket.setReceiveBufferSize(READ_SIZE);
+            socket.connect(new InetSocketAddress("localhost", API_PORT));
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /download/" + code + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[READ_SIZE];
+            long received = 0;
+            boolean counted = false;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (!counted) {
+                    peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    counted = true;
+                }
+                received += read;
+                Thread.sleep(READ_PAUSE_MILLIS);
+            }
+            if (counted) inFlight.decrementAndGet();
+            if (received < FILE_SIZE) throw new IllegalStateException("Short download: " + received);
+        }
+    }
+}
@@ -5,9 +5,10 @@ import p2p.controller.FileController;
 public class App {
     public static void main(String[] args) {
         System.out.println("Hello Iam P2P file sharer! :)");
-        int port = 8080;
+        int port = Integer.getInteger("p2p.port", 8080);
+        int transferPort = Integer.getInteger("p2p.transferPort", 9090);
         try{
-            FileController fileController = new FileController(port);
+            FileController fileController = new FileController(port, transferPort);
             fileController.start();
             System.out.println("P2P server running on port: "+port);
             System.out.println("UI available at http://localhost:3000");
@@ -30,7 +31,7 @@ public class App {
                 Thread.currentThread().join();
             }
         }catch (Exception e){
-            System.err.println("Failed to start the server at port 8080");
+            System.err.println("Failed to start the server at port " + port);
             e.printStackTrace();
         }
     }
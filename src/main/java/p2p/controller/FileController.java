@@ -4,52 +4,519 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import org.apache.commons.io.IOUtils;
+import p2p.http.AsyncHttpServer;
+import p2p.service.AdmissionControl;
+import p2p.service.BlobStore;
+import p2p.service.Cluster;
+import p2p.service.ChunkedUpload;
 import p2p.service.FileSharer;
+import p2p.service.HotFileCache;
+import p2p.service.PeerConnection;
+import p2p.service.Reaper;
+import p2p.service.ShareJournal;
+import p2p.service.SharedFile;
+import p2p.utils.ByteRange;
+import p2p.utils.ContentTypes;
+import p2p.utils.Metrics;
+import p2p.utils.StreamChannels;
+import p2p.utils.StreamingMultiparser;
+import p2p.utils.UploadUtils;
+import p2p.utils.ZipLayout;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class FileController {
 
+    // Smaller bodies aren't worth a gzip header and trailer
+    private static final long MIN_COMPRESS_SIZE = 1024;
+
     private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final ShareJournal shareJournal;
     private final HttpServer server;
     private final String uploadDir;
     private final ExecutorService executorService;
+    private final boolean storeCompressed;
+    private final boolean uploadByHash;
+    private final ConcurrentHashMap<String, ChunkedUpload> chunkedUploads = new ConcurrentHashMap<>();
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl uploadAdmission;
+    private final AdmissionControl downloadAdmission;
+    private final long retryAfterSeconds;
+    private final HotFileCache hotFiles;
+    private final Cluster cluster;
+    private final Reaper reaper;
 
-    public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "p2p-upload";
-        this.executorService = Executors.newFixedThreadPool(10);
+    public FileController(int port, int transferPort) throws IOException {
+        this.server = createServer(port);
+        this.uploadDir = System.getProperty("p2p.uploadDir", System.getProperty("java.io.tmpdir") + File.separator + "p2p-upload");
+        this.executorService = createExecutor(server instanceof AsyncHttpServer);
+        // -Dp2p.storeCompressed=true keeps a gzip copy of compressible uploads for downloads to send as is
+        this.storeCompressed = Boolean.getBoolean("p2p.storeCompressed");
+        this.uploadByHash = Boolean.getBoolean("p2p.upload.byHash");
+        this.uploadAdmission = createAdmission("uploads", 32, 4, 16L << 30);
+        this.downloadAdmission = createAdmission("downloads", 256, 16, Long.MAX_VALUE);
+        this.retryAfterSeconds = Long.getLong("p2p.retryAfter", 1);
+        // -Dp2p.cache.bytes=<budget> serves hot files from memory, off by default
+        long cacheBytes = Long.getLong("p2p.cache.bytes", 0);
+        this.hotFiles = cacheBytes > 0
+                ? new HotFileCache(cacheBytes, Long.getLong("p2p.cache.maxFileSize", 4 * 1024 * 1024), metrics)
+                : null;
 
         File uploadDirFile = new File(uploadDir);
         if (!uploadDirFile.exists()) {
             uploadDirFile.mkdir();
         }
+        this.blobStore = new BlobStore(uploadDir);
+        this.shareJournal = new ShareJournal(Path.of(uploadDir, "shares.journal"));
+        this.cluster = createCluster(transferPort);
+        this.fileSharer = new FileSharer(transferPort, blobStore, shareJournal, metrics, cluster);
+        // -Dp2p.quota.bytes caps the stored blobs; past the high watermark the least recently used
+        // shares go until usage is back under the low one
+        this.reaper = new Reaper(fileSharer, blobStore, chunkedUploads,
+                Long.getLong("p2p.quota.bytes", 0),
+                Double.parseDouble(System.getProperty("p2p.quota.high", "0.9")),
+                Double.parseDouble(System.getProperty("p2p.quota.low", "0.8")),
+                Long.getLong("p2p.reaper.idleSeconds", 6 * 60 * 60) * 1000,
+                metrics);
 
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        if (executorService instanceof ThreadPoolExecutor pool) {
+            metrics.gauge("p2p_executor_queue_depth", "Exchanges waiting for a pool thread.", () -> pool.getQueue().size());
+        }
+        metrics.gauge("p2p_chunked_uploads", "Chunked uploads started and not yet completed.", chunkedUploads::size);
+        metrics.gauge("p2p_stored_bytes", "Bytes of stored blobs referenced by shares.", blobStore::storedBytes);
+        metrics.gauge("p2p_admitted_exchanges", "Exchanges holding an admission permit.", "pool=\"upload\"", uploadAdmission::active);
+        metrics.gauge("p2p_admitted_exchanges", "Exchanges holding an admission permit.", "pool=\"download\"", downloadAdmission::active);
+        if (hotFiles != null) {
+            metrics.gauge("p2p_cache_bytes", "Bytes of file content held by the hot file cache.", hotFiles::used);
+            metrics.gauge("p2p_cache_entries", "Files held by the hot file cache.", hotFiles::size);
+        }
+        metrics.gauge("p2p_admitted_body_bytes", "Request body bytes declared by admitted exchanges.", "pool=\"upload\"", uploadAdmission::bytesInFlight);
+
+        server.createContext("/upload", new AdmissionHandler("upload", uploadAdmission,
+                new InstrumentedHandler("upload", new UploadHandler())));
+        server.createContext("/uploads", new AdmissionHandler("chunked_upload", uploadAdmission,
+                new InstrumentedHandler("chunked_upload", new ChunkedUploadHandler())));
+        server.createContext("/download", new AdmissionHandler("download", downloadAdmission,
+                new InstrumentedHandler("download", new DownloadHandler())));
+        server.createContext("/metrics", new MetricsHandler());
         server.createContext("/", new CORSHandler());
         server.setExecutor(executorService);
     }
 
-    public void start() {
+    /**
+     * -Dp2p.http=async serves HTTP from {@link AsyncHttpServer} instead of the JDK server; the
+     * handlers are the same for both.
+     */
+    private static HttpServer createServer(int port) throws IOException {
+        String transport = System.getProperty("p2p.http", "jdk");
+        return switch (transport) {
+            case "jdk" -> HttpServer.create(new InetSocketAddress(port), 0);
+            case "async" -> AsyncHttpServer.create(new InetSocketAddress(port), 0);
+            default -> throw new IllegalArgumentException("Unknown HTTP transport " + transport);
+        };
+    }
+
+    /**
+     * The executor exchanges run on, picked with -Dp2p.executor=virtual|platform. The default
+     * depends on the transport. {@link AsyncHttpServer} only parks on its reads and writes, so
+     * every exchange gets its own virtual thread. The JDK server's streams write under a monitor,
+     * and on JDK 21 a virtual thread blocked there on a slow client pins its carrier; a handful
+     * of slow downloads would then stall every other exchange. It keeps a pool of
+     * -Dp2p.executor.threads platform threads instead.
+     */
+    private static ExecutorService createExecutor(boolean async) {
+        String mode = System.getProperty("p2p.executor", async ? "virtual" : "platform");
+        if (mode.equalsIgnoreCase("platform")) {
+            int threads = Integer.getInteger("p2p.executor.threads", 10);
+            System.out.println("Using a pool of " + threads + " platform threads");
+            return Executors.newFixedThreadPool(threads);
+        }
+        System.out.println("Using virtual threads");
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Limits for one direction of traffic, overridable as -Dp2p.{pool}.maxConcurrent,
+     * .maxPerClient, .maxBytes, .maxClientBytes, .bandwidth and .clientBandwidth (bytes per second).
+     */
+    private static AdmissionControl createAdmission(String pool, int maxConcurrent, int maxPerClient, long maxBytes) {
+        String prefix = "p2p." + pool + ".";
+        long bytes = Long.getLong(prefix + "maxBytes", maxBytes);
+        // By default one client may claim half the byte budget, never all of it
+        long clientBytes = Long.getLong(prefix + "maxClientBytes", bytes == Long.MAX_VALUE ? bytes : bytes / 2);
+        return new AdmissionControl(
+                Integer.getInteger(prefix + "maxConcurrent", maxConcurrent),
+                Integer.getInteger(prefix + "maxPerClient", maxPerClient),
+                bytes, clientBytes,
+                Long.getLong(prefix + "bandwidth", 0),
+                Long.getLong(prefix + "clientBandwidth", 0));
+    }
+
+    /**
+     * -Dp2p.cluster.nodes=host:port,... lists the transfer address of every node, the same list on
+     * each of them. -Dp2p.cluster.self names this node in the list and -Dp2p.cluster.replicas sets
+     * how many nodes keep a copy of each share.
+     */
+    private static Cluster createCluster(int transferPort) {
+        String nodes = System.getProperty("p2p.cluster.nodes");
+        if (nodes == null || nodes.isBlank()) return null;
+        String self = System.getProperty("p2p.cluster.self", "localhost:" + transferPort);
+        Cluster cluster = new Cluster(self, List.of(nodes.trim().split("\\s*,\\s*")), Integer.getInteger("p2p.cluster.replicas", 1));
+        System.out.println("Cluster node " + self + " of " + cluster.size() + ", " + cluster.replicas + " copies per share");
+        return cluster;
+    }
+
+    /**
+     * Transfer addresses to fetch a share from, in order. Outside a cluster that is just the local sharer.
+     */
+    private List<InetSocketAddress> peersFor(String code) {
+        if (cluster == null) return List.of(new InetSocketAddress("localhost", fileSharer.getPort()));
+        return cluster.nodesFor(code);
+    }
+
+    /**
+     * Opens the transfer from the first node that answers, so a share outlives its owner on the replicas.
+     */
+    private static PeerConnection openPeer(List<InetSocketAddress> peers, String code, int index, long offset, long length) throws IOException {
+        return openPeer(peers, code, index, offset, length, false);
+    }
+
+    private static PeerConnection openPeer(List<InetSocketAddress> peers, String code, int index, long offset, long length, boolean gzip) throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress peer : peers) {
+            try {
+                // A node that answers has the last word, even when the answer is an error
+                return PeerConnection.open(peer, code, index, offset, length, gzip);
+            } catch (IOException e) {
+                System.err.println("Node " + peer + " unavailable: " + e.getMessage());
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    public void start() throws IOException {
+        fileSharer.start();
+        reaper.start(Long.getLong("p2p.reaper.intervalSeconds", 10));
         server.start();
         System.out.println("API server started on port " + server.getAddress().getPort());
     }
 
     public void stop() {
         server.stop(0);
+        reaper.stop();
+        fileSharer.stop();
         executorService.shutdown();
+        try {
+            shareJournal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing share journal: " + e.getMessage());
+        }
         System.out.println("API server stopped");
     }
 
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private SharedFile compressIfEnabled(SharedFile stored) {
+        if (storeCompressed && ContentTypes.isCompressible(ContentTypes.forFileName(stored.fileName))) {
+            try {
+                blobStore.compress(stored);
+            } catch (IOException e) {
+                // The upload itself is fine, downloads just compress on the fly
+                System.err.println("Error compressing " + stored.fileName + ": " + e.getMessage());
+            }
+        }
+        return stored;
+    }
+
+    private void sendShare(HttpExchange exchange, String code, List<SharedFile> files, int maxDownloads, long ttlSeconds) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < files.size(); i++) {
+            SharedFile file = files.get(i);
+            if (i > 0) manifest.append(',');
+            manifest.append("{\"index\":").append(i)
+                    .append(",\"fileName\":\"").append(escapeJson(file.fileName))
+                    .append("\",\"size\":").append(file.size)
+                    .append(",\"sha256\":\"").append(file.hash).append("\"}");
+        }
+        // "port" repeats the code for clients written when codes were port numbers
+        String jsonResponse = "{\"code\":\"" + code + "\",\"port\":\"" + code + "\""
+                + ",\"fileName\":\"" + escapeJson(files.get(0).fileName) + "\""
+                + ",\"maxDownloads\":" + maxDownloads + ",\"ttl\":" + ttlSeconds
+                + ",\"files\":[" + manifest + "]}";
+        byte[] responseBytes = jsonResponse.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, responseBytes.length);
+        try (OutputStream oos = exchange.getResponseBody()) {
+            oos.write(responseBytes);
+        }
+    }
+
+    private String escapeJson(String str) {
+        StringBuilder escaped = new StringBuilder(str.length());
+        for (char c : str.toCharArray()) {
+            if (c == '"' || c == '\\') escaped.append('\\').append(c);
+            else if (c < 0x20 || c == '\u2028' || c == '\u2029') escaped.append(String.format("\\u%04x", (int) c));
+            else escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Turns an exchange away with 413, 429 or 503 when it doesn't fit the admission limits,
+     * and otherwise runs it with its body streams shaped to the bandwidth limits.
+     */
+    private class AdmissionHandler implements HttpHandler {
+
+        private final AdmissionControl admission;
+        private final HttpHandler handler;
+        private final Map<Integer, Metrics.Counter> rejections = new HashMap<>();
+
+        AdmissionHandler(String name, AdmissionControl admission, HttpHandler handler) {
+            this.admission = admission;
+            this.handler = handler;
+            for (int status : new int[]{413, 429, 503}) {
+                rejections.put(status, metrics.counter("p2p_http_rejections_total", "HTTP exchanges turned away by admission control.",
+                        "handler=\"" + name + "\",status=\"" + status + "\""));
+            }
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                handler.handle(exchange);
+                return;
+            }
+
+            long declaredLength = declaredLength(exchange);
+            AdmissionControl.Permit permit;
+            try {
+                permit = admission.admit(exchange.getRemoteAddress().getAddress(), declaredLength);
+            } catch (AdmissionControl.Rejected e) {
+                rejections.get(e.status).inc();
+                Headers headers = exchange.getResponseHeaders();
+                headers.add("Access-Control-Allow-Origin", "*");
+                // Too large is final, the rest is worth retrying once the load drops
+                if (e.status != 413) headers.add("Retry-After", String.valueOf(retryAfterSeconds));
+                // The body is never read, so the connection can't carry another request
+                if (declaredLength > 0) headers.add("Connection", "close");
+                byte[] response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(e.status, response.length);
+                try (OutputStream oos = exchange.getResponseBody()) {
+                    oos.write(response);
+                }
+                return;
+            }
+
+            try (permit) {
+                if (admission.isShaped()) {
+                    exchange.setStreams(new ThrottledInputStream(exchange.getRequestBody(), permit),
+                            new ThrottledOutputStream(exchange.getResponseBody(), permit));
+                }
+                handler.handle(exchange);
+            }
+        }
+
+        private long declaredLength(HttpExchange exchange) {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength == null) return 0;
+            try {
+                return Math.max(0, Long.parseLong(contentLength.trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final AdmissionControl.Permit permit;
+
+        ThrottledInputStream(InputStream in, AdmissionControl.Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) permit.throttle(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) permit.throttle(count);
+            return count;
+        }
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+        private final AdmissionControl.Permit permit;
+
+        ThrottledOutputStream(OutputStream out, AdmissionControl.Permit permit) {
+            super(out);
+            this.permit = permit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            permit.throttle(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            permit.throttle(len);
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Counts requests, errors and body bytes of a handler and times each exchange.
+     */
+    private class InstrumentedHandler implements HttpHandler {
+
+        private final HttpHandler handler;
+        private final Metrics.Counter requests;
+        private final Metrics.Counter errors;
+        private final Metrics.Counter received;
+        private final Metrics.Counter sent;
+        private final Metrics.Histogram duration;
+        private final AtomicLong inFlight = new AtomicLong();
+
+        InstrumentedHandler(String name, HttpHandler handler) {
+            this.handler = handler;
+            String labels = "handler=\"" + name + "\"";
+            requests = metrics.counter("p2p_http_requests_total", "HTTP exchanges handled.", labels);
+            errors = metrics.counter("p2p_http_errors_total", "HTTP exchanges that failed or answered 5xx.", labels);
+            received = metrics.counter("p2p_http_received_bytes_total", "Request body bytes read.", labels);
+            sent = metrics.counter("p2p_http_sent_bytes_total", "Response body bytes written.", labels);
+            duration = metrics.histogram("p2p_http_request_duration_seconds", "Time to handle an exchange, body included.", labels);
+            metrics.gauge("p2p_http_in_flight_requests", "HTTP exchanges being handled.", labels, inFlight::get);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), received),
+                    new CountingOutputStream(exchange.getResponseBody(), sent));
+            boolean failed = true;
+            try {
+                handler.handle(exchange);
+                failed = exchange.getResponseCode() >= 500;
+            } finally {
+                inFlight.decrementAndGet();
+                requests.inc();
+                if (failed) errors.inc();
+                duration.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Metrics.Counter counter;
+
+        CountingInputStream(InputStream in, Metrics.Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) counter.inc();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0) counter.add(count);
+            return count;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Metrics.Counter counter;
+
+        CountingOutputStream(OutputStream out, Metrics.Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.inc();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream would otherwise write byte by byte
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                String response = "METHOD NOT ALLOWED";
+                exchange.sendResponseHeaders(405, response.getBytes().length);
+                try (OutputStream oos = exchange.getResponseBody()) {
+                    oos.write(response.getBytes());
+                }
+                return;
+            }
+            byte[] response = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream oos = exchange.getResponseBody()) {
+                oos.write(response);
+            }
+        }
+    }
+
     private class CORSHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -93,6 +560,43 @@ public class FileController {
                 return;
             }
 
+            // Optional share limits: ?maxDownloads=<per file>&ttl=<seconds>
+            Map<String, String> query = queryParams(exchange);
+            int maxDownloads;
+            long ttlSeconds;
+            try {
+                maxDownloads = Integer.parseInt(query.getOrDefault("maxDownloads", "0"));
+                ttlSeconds = Long.parseLong(query.getOrDefault("ttl", "0"));
+            } catch (NumberFormatException e) {
+                String response = "Bad request: maxDownloads and ttl must be numbers";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream oos = exchange.getResponseBody()) {
+                    oos.write(response.getBytes());
+                }
+                return;
+            }
+
+            // Hash first: ?sha256=<hex>&fileName=<name> shares content we already store without a body.
+            // Knowing the hash is enough to share the content, and the hash is no secret: it is the
+            // ETag of every download. So this is off unless -Dp2p.upload.byHash=true; when off every
+            // hash is reported missing and clients fall back to uploading the body.
+            if (query.containsKey("sha256")) {
+                String fileName = UploadUtils.sanitizeFileName(query.get("fileName"));
+                SharedFile existing = uploadByHash ? blobStore.acquire(query.get("sha256"), fileName) : null;
+                if (existing == null) {
+                    String response = "{\"missing\":true}";
+                    headers.add("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(404, response.getBytes().length);
+                    try (OutputStream oos = exchange.getResponseBody()) {
+                        oos.write(response.getBytes());
+                    }
+                    return;
+                }
+                String code = fileSharer.offerFiles(List.of(existing), maxDownloads, ttlSeconds * 1000);
+                sendShare(exchange, code, List.of(existing), maxDownloads, ttlSeconds);
+                return;
+            }
+
             Headers requestHeaders = exchange.getRequestHeaders();
             String contentType = requestHeaders.getFirst("Content-Type");
             if (contentType == null || !contentType.startsWith("multipart/form-data")) {
@@ -120,14 +624,24 @@ public class FileController {
                     boundary = boundary.substring(1, boundary.length() - 1);
                 }
                 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
-
-                Multiparser multiparser = new Multiparser(requestData, boundary);
-                Multiparser.ParseResult result = multiparser.parse();
+                // Every file part is written as it is parsed, so the upload never sits on the heap
+                List<SharedFile> stored = new ArrayList<>();
+                try {
+                    StreamingMultiparser parser = new StreamingMultiparser(exchange.getRequestBody(), boundary);
+                    StreamingMultiparser.Part part;
+                    while ((part = parser.nextPart()) != null) {
+                        if (part.isFile()) {
+                            stored.add(storePart(part));
+                        }
+                    }
+                } catch (IOException e) {
+                    for (SharedFile file : stored) {
+                        blobStore.release(file);
+                    }
+                    throw e;
+                }
 
-                if (result == null) {
+                if (stored.isEmpty()) {
                     String response = "Bad Result: Could not parse file content";
                     exchange.sendResponseHeaders(400, response.getBytes().length);
                     try (OutputStream oos = exchange.getResponseBody()) {
@@ -136,27 +650,14 @@ public class FileController {
                     return;
                 }
 
-                String fileName = result.fileName;
-                if (fileName == null || fileName.trim().isEmpty()) {
-                    fileName = "unnamed-file";
-                }
-                
-                // Preserve original extension
-                String uniqueFileName = UUID.randomUUID().toString() + "_" + sanitizeFileName(fileName);
-                String filePath = uploadDir + File.separator + uniqueFileName;
-                
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
-                }
-                
-                int port = fileSharer.offerFile(filePath);
-                new Thread(() -> fileSharer.startFileServer(port)).start();
-                
-                String jsonResponse = "{\"port\":" + port + ",\"fileName\":\"" + escapeJson(fileName) + "\"}";
-                headers.add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+                String code = fileSharer.offerFiles(stored, maxDownloads, ttlSeconds * 1000);
+
+                sendShare(exchange, code, stored, maxDownloads, ttlSeconds);
+            } catch (StreamingMultiparser.MultipartException e) {
+                String response = "Bad Result: " + e.getMessage();
+                exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream oos = exchange.getResponseBody()) {
-                    oos.write(jsonResponse.getBytes());
+                    oos.write(response.getBytes());
                 }
             } catch (Exception e) {
                 System.err.println("Error in processing file upload " + e.getMessage());
@@ -169,116 +670,157 @@ public class FileController {
             }
         }
         
-        private String sanitizeFileName(String fileName) {
-            return fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
-        }
-        
-        private String escapeJson(String str) {
-            return str.replace("\\", "\\\\").replace("\"", "\\\"");
+        private SharedFile storePart(StreamingMultiparser.Part part) throws IOException {
+            String fileName = UploadUtils.sanitizeFileName(part.fileName);
+
+            // Hashed while it streams to disk, then deduplicated against stored blobs
+            BlobStore.Upload upload = blobStore.begin();
+            try {
+                part.transferTo(upload);
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+            return compressIfEnabled(upload.commit(fileName));
         }
     }
 
-    private static class Multiparser {
-        private final byte[] data;
-        private final String boundary;
+    /**
+     * Chunked uploads for large files:
+     * <pre>
+     * POST   /uploads?fileName=&amp;size=&amp;chunkSize=[&amp;maxDownloads=&amp;ttl=]  start, returns the upload id
+     * PUT    /uploads/{id}/{chunk}    one chunk, with its CRC32C as 8 hex digits in X-Chunk-CRC32C
+     * GET    /uploads/{id}            progress, lists the chunks still missing
+     * POST   /uploads/{id}/complete   stores the file and shares it like /upload
+     * DELETE /uploads/{id}            gives up and deletes what was sent
+     * </pre>
+     * Chunks may arrive in any order and in parallel; a failed chunk is simply sent again.
+     */
+    private class ChunkedUploadHandler implements HttpHandler {
 
-        public Multiparser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
-        }
+        private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,X-Chunk-CRC32C");
+
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            if (method.equals("OPTIONS")) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
 
-        public ParseResult parse() {
+            // "", "uploads", id, chunk or "complete"
+            String[] parts = exchange.getRequestURI().getPath().split("/");
             try {
-                // Find the header section by searching for patterns in bytes
-                byte[] filenameMarker = "filename=\"".getBytes(StandardCharsets.ISO_8859_1);
-                int fileNameStart = findSequence(data, filenameMarker, 0);
-                if (fileNameStart == -1) return null;
-                
-                fileNameStart += filenameMarker.length;
-                
-                // Find closing quote for filename
-                int fileNameEnd = -1;
-                for (int i = fileNameStart; i < data.length; i++) {
-                    if (data[i] == '"') {
-                        fileNameEnd = i;
-                        break;
-                    }
+                if (parts.length == 2 && method.equals("POST")) {
+                    start(exchange);
+                    return;
                 }
-                if (fileNameEnd == -1) return null;
-                
-                String fileName = new String(data, fileNameStart, fileNameEnd - fileNameStart, StandardCharsets.UTF_8);
-
-                // Find Content-Type (optional)
-                String contentType = "application/octet-stream";
-                byte[] contentTypeMarker = "Content-Type:".getBytes(StandardCharsets.ISO_8859_1);
-                int contentTypeStart = findSequence(data, contentTypeMarker, fileNameEnd);
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length;
-                    // Skip whitespace
-                    while (contentTypeStart < data.length && (data[contentTypeStart] == ' ' || data[contentTypeStart] == '\t')) {
-                        contentTypeStart++;
-                    }
-                    int contentTypeEnd = contentTypeStart;
-                    while (contentTypeEnd < data.length && data[contentTypeEnd] != '\r' && data[contentTypeEnd] != '\n') {
-                        contentTypeEnd++;
-                    }
-                    contentType = new String(data, contentTypeStart, contentTypeEnd - contentTypeStart, StandardCharsets.ISO_8859_1).trim();
+                ChunkedUpload upload = parts.length > 2 ? chunkedUploads.get(parts[2]) : null;
+                if (upload == null) {
+                    respond(exchange, 404, "Unknown upload");
+                } else if (parts.length == 3 && method.equals("GET")) {
+                    sendProgress(exchange, upload, 200);
+                } else if (parts.length == 3 && method.equals("DELETE")) {
+                    if (chunkedUploads.remove(upload.id, upload)) upload.abort();
+                    exchange.sendResponseHeaders(204, -1);
+                } else if (parts.length == 4 && method.equals("PUT")) {
+                    putChunk(exchange, upload, Integer.parseInt(parts[3]));
+                } else if (parts.length == 4 && method.equals("POST") && parts[3].equals("complete")) {
+                    complete(exchange, upload);
+                } else {
+                    respond(exchange, 405, "METHOD NOT ALLOWED");
                 }
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "Bad request: " + e.getMessage());
+            } catch (ChunkedUpload.ChunkException e) {
+                respond(exchange, 400, "Bad request: " + e.getMessage());
+            } catch (Exception e) {
+                System.err.println("Error in chunked upload " + e.getMessage());
+                e.printStackTrace();
+                respond(exchange, 500, "Server error " + e.getMessage());
+            }
+        }
 
-                // Find end of headers (double CRLF)
-                byte[] headerEndMarker = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
-                int headerEnd = findSequence(data, headerEndMarker, fileNameEnd);
-                if (headerEnd == -1) return null;
-
-                int contentStart = headerEnd + headerEndMarker.length;
+        private void start(HttpExchange exchange) throws IOException {
+            Map<String, String> query = queryParams(exchange);
+            String fileName = UploadUtils.sanitizeFileName(query.get("fileName"));
+            long size = Long.parseLong(query.getOrDefault("size", "0"));
+            int chunkSize = Integer.parseInt(query.getOrDefault("chunkSize", String.valueOf(DEFAULT_CHUNK_SIZE)));
+            int maxDownloads = Integer.parseInt(query.getOrDefault("maxDownloads", "0"));
+            long ttlSeconds = Long.parseLong(query.getOrDefault("ttl", "0"));
 
-                // Find end boundary
-                byte[] endBoundaryBytes = ("\r\n--" + boundary + "--").getBytes(StandardCharsets.ISO_8859_1);
-                int contentEnd = findSequence(data, endBoundaryBytes, contentStart);
-                
-                if (contentEnd == -1) {
-                    // Try without the trailing --
-                    byte[] boundaryBytes = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
+            // The file is preallocated to its full size, so the size has to fit the quota next to the
+            // other chunked uploads before anything is allocated. Each chunk is admitted on its own.
+            String id = UUID.randomUUID().toString();
+            ChunkedUpload upload = null;
+            synchronized (chunkedUploads) {
+                if (reaper.fitsQuota(size)) {
+                    upload = new ChunkedUpload(id, blobStore.incomingFile(), fileName, size, chunkSize, maxDownloads, ttlSeconds);
+                    chunkedUploads.put(id, upload);
                 }
-                
-                if (contentEnd == -1 || contentEnd < contentStart) return null;
-
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-                
-                return new ParseResult(fileName, fileContent, contentType);
+            }
+            if (upload == null) {
+                respond(exchange, 507, "Not enough storage for an upload of " + size + " bytes");
+                return;
+            }
+            System.out.println("Chunked upload " + id + " started: " + fileName + ", " + upload.chunkCount() + " chunks");
+            sendProgress(exchange, upload, 201);
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                e.printStackTrace();
-                return null;
+        private void putChunk(HttpExchange exchange, ChunkedUpload upload, int index) throws IOException {
+            String checksum = exchange.getRequestHeaders().getFirst("X-Chunk-CRC32C");
+            if (checksum == null) {
+                respond(exchange, 400, "Bad request: X-Chunk-CRC32C header is required");
+                return;
+            }
+            int crc32c = Integer.parseUnsignedInt(checksum.trim(), 16);
+            if (upload.writeChunk(index, StreamChannels.readable(exchange.getRequestBody()), crc32c)) {
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                respond(exchange, 400, "Checksum mismatch for chunk " + index);
             }
         }
 
-        public static class ParseResult {
-            public final String fileName;
-            public final byte[] fileContent;
-            public final String contentType;
+        private void complete(HttpExchange exchange, ChunkedUpload upload) throws IOException {
+            if (!upload.finish()) {
+                sendProgress(exchange, upload, 409);
+                return;
+            }
+            chunkedUploads.remove(upload.id, upload);
+            // The chunks already sit in place, this only hashes the file and moves it
+            SharedFile stored = compressIfEnabled(blobStore.adopt(upload.path, upload.fileName));
+            String code = fileSharer.offerFiles(List.of(stored), upload.maxDownloads, upload.ttlSeconds * 1000);
+            sendShare(exchange, code, List.of(stored), upload.maxDownloads, upload.ttlSeconds);
+        }
 
-            public ParseResult(String fileName, byte[] fileContent, String contentType) {
-                this.fileName = fileName;
-                this.fileContent = fileContent;
-                this.contentType = contentType;
+        private void sendProgress(HttpExchange exchange, ChunkedUpload upload, int status) throws IOException {
+            StringBuilder missing = new StringBuilder();
+            for (int chunk : upload.missingChunks()) {
+                if (missing.length() > 0) missing.append(',');
+                missing.append(chunk);
+            }
+            String json = "{\"uploadId\":\"" + upload.id + "\",\"fileName\":\"" + escapeJson(upload.fileName) + "\""
+                    + ",\"size\":" + upload.size + ",\"chunkSize\":" + upload.chunkSize
+                    + ",\"chunks\":" + upload.chunkCount() + ",\"missing\":[" + missing + "]}";
+            byte[] responseBytes = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, responseBytes.length);
+            try (OutputStream oos = exchange.getResponseBody()) {
+                oos.write(responseBytes);
             }
         }
 
-        private static int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
-                        continue outer;
-                    }
-                }
-                return i;
+        private void respond(HttpExchange exchange, int status, String response) throws IOException {
+            byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, responseBytes.length);
+            try (OutputStream oos = exchange.getResponseBody()) {
+                oos.write(responseBytes);
             }
-            return -1;
         }
     }
 
@@ -290,6 +832,7 @@ public class FileController {
             headers.add("Access-Control-Allow-Origin", "*");
             headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
             headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            headers.add("Access-Control-Expose-Headers", "ETag,Digest,Content-Disposition");
 
             if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
                 exchange.sendResponseHeaders(204, -1);
@@ -308,7 +851,7 @@ public class FileController {
             String path = exchange.getRequestURI().getPath();
             String[] parts = path.split("/");
             if (parts.length < 3) {
-                String response = "Invalid download URL. Expected format: /download/{port}";
+                String response = "Invalid download URL. Expected format: /download/{code}[/{index}] or /download/{code}.zip";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream oos = exchange.getResponseBody()) {
                     oos.write(response.getBytes());
@@ -316,65 +859,167 @@ public class FileController {
                 return;
             }
             
-            String portStr = parts[2];
+            String code = parts[2].toLowerCase(Locale.ROOT);
+            boolean archive = parts.length == 3 && code.endsWith(".zip");
+            if (archive) code = code.substring(0, code.length() - ".zip".length());
+            if (!UploadUtils.isValidCode(code)) {
+                String response = "Invalid share code";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream oos = exchange.getResponseBody()) {
+                    oos.write(response.getBytes());
+                }
+                return;
+            }
             try {
-                int port = Integer.parseInt(portStr);
+                if (archive) {
+                    sendArchive(exchange, peersFor(code), code);
+                    return;
+                }
+                int index = parts.length > 3 ? Integer.parseInt(parts[3]) : 0;
+                List<InetSocketAddress> peers = peersFor(code);
+                headers.add("Accept-Ranges", "bytes");
 
-                try (Socket socket = new Socket("localhost", port);
-                     InputStream socketInput = socket.getInputStream()) {
+                headers.add("Vary", "Accept-Encoding");
 
-                    // Read header line (filename)
-                    ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                    int b;
-                    while ((b = socketInput.read()) != -1) {
-                        if (b == '\n') break;
-                        headerBaos.write(b);
+                String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+                if (rangeHeader == null) {
+                    // Ranges always address the identity bytes, only whole-file responses are compressed
+                    boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    // Stored gzip copies aren't cached, those downloads keep going through the sharer
+                    if (hotFiles != null && !(gzip && storeCompressed) && sendCached(exchange, code, index, gzip)) {
+                        return;
                     }
-                    
-                    String header = headerBaos.toString(StandardCharsets.UTF_8.name()).trim();
-                    String fileName = "downloaded-file";
-                    if (header.startsWith("filename: ")) {
-                        fileName = header.substring("filename: ".length()).trim();
-                        // Remove any carriage return
-                        fileName = fileName.replace("\r", "");
+                    try (PeerConnection connection = openPeer(peers, code, index, 0, -1, gzip)) {
+                        if (connection.isError()) {
+                            sendNotFound(exchange);
+                            return;
+                        }
+                        long length = connection.longHeader("length", -1);
+                        if ("gzip".equals(connection.header("encoding"))) {
+                            // Compressed at upload, sent without touching the bytes
+                            addFileHeaders(headers, connection, "gzip");
+                            exchange.sendResponseHeaders(200, length);
+                            try (OutputStream oos = exchange.getResponseBody()) {
+                                connection.transferTo(StreamChannels.writable(oos));
+                            }
+                        } else if (gzip && length >= MIN_COMPRESS_SIZE
+                                && ContentTypes.isCompressible(ContentTypes.forFileName(String.valueOf(connection.header("filename"))))) {
+                            addFileHeaders(headers, connection, "gzip");
+                            exchange.sendResponseHeaders(200, 0);
+                            // Not closed on failure: that would end the chunked body as if it were complete
+                            OutputStream oos = new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024);
+                            connection.transferTo(StreamChannels.writable(oos));
+                            oos.close();
+                        } else {
+                            addFileHeaders(headers, connection);
+                            // Known length goes out right away, otherwise fall back to chunked encoding
+                            exchange.sendResponseHeaders(200, length >= 0 ? length : 0);
+                            OutputStream oos = exchange.getResponseBody();
+                            connection.transferTo(StreamChannels.writable(oos));
+                            oos.close();
+                        }
                     }
+                    return;
+                }
 
-                    // Determine content type from extension
-                    String contentTypeHeader = getContentType(fileName);
+                // A zero-length request returns just the metadata the ranges are resolved against
+                String fileName;
+                long size;
+                String etag;
+                String lastModified;
+                boolean limited;
+                try (PeerConnection metadata = openPeer(peers, code, index, 0, 0)) {
+                    if (metadata.isError()) {
+                        sendNotFound(exchange);
+                        return;
+                    }
+                    fileName = metadata.header("filename");
+                    size = metadata.longHeader("size", 0);
+                    etag = etagOf(metadata);
+                    lastModified = lastModifiedOf(metadata);
+                    limited = metadata.header("max-downloads") != null;
+                }
+
+                // If-Range only honours the range while the representation is unchanged. Every range
+                // of a limited share would count as a download, so those get the whole file instead.
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                List<ByteRange> ranges = null;
+                if (!limited && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+                    ranges = ByteRange.parse(rangeHeader, size);
+                }
 
-                    // Read remaining data (file content) into temp file
-                    File tempFile = File.createTempFile("download-", getExtension(fileName));
-                    try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                        byte[] buffer = new byte[8192];
-                        int byteRead;
-                        while ((byteRead = socketInput.read(buffer)) != -1) {
-                            fos.write(buffer, 0, byteRead);
+                // The share can expire or run out of downloads after the metadata request
+                if (ranges == null) {
+                    try (PeerConnection connection = openPeer(peers, code, index, 0, -1)) {
+                        if (connection.isError()) {
+                            sendNotFound(exchange);
+                            return;
+                        }
+                        addFileHeaders(headers, connection);
+                        exchange.sendResponseHeaders(200, connection.longHeader("length", 0));
+                        try (OutputStream oos = exchange.getResponseBody()) {
+                            connection.transferTo(StreamChannels.writable(oos));
                         }
                     }
+                    return;
+                }
+
+                if (ranges.isEmpty()) {
+                    headers.add("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
 
-                    // Set response headers
-                    headers.add("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                    headers.add("Content-Type", contentTypeHeader);
-                    headers.add("Content-Length", String.valueOf(tempFile.length()));
-                    
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    
-                    try (OutputStream oos = exchange.getResponseBody();
-                         FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[8192];
-                        int byteRead;
-                        while ((byteRead = fis.read(buffer)) != -1) {
-                            oos.write(buffer, 0, byteRead);
+                if (ranges.size() == 1) {
+                    ByteRange range = ranges.get(0);
+                    try (PeerConnection connection = openPeer(peers, code, index, range.start, range.length())) {
+                        if (connection.isError()) {
+                            sendNotFound(exchange);
+                            return;
                         }
-                        oos.flush();
-                    } finally {
-                        if (tempFile.exists()) {
-                            tempFile.delete();
+                        addFileHeaders(headers, connection);
+                        headers.add("Content-Range", range.contentRange(size));
+                        exchange.sendResponseHeaders(206, range.length());
+                        try (OutputStream oos = exchange.getResponseBody()) {
+                            connection.transferTo(StreamChannels.writable(oos));
+                        }
+                    }
+                    return;
+                }
+
+                // Several ranges: multipart/byteranges with a precomputed length
+                String boundary = UUID.randomUUID().toString().replace("-", "");
+                String contentType = ContentTypes.forFileName(fileName);
+                List<byte[]> partHeaders = new ArrayList<>();
+                long contentLength = 0;
+                for (ByteRange range : ranges) {
+                    byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                            + "\r\nContent-Range: " + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    partHeaders.add(partHeader);
+                    contentLength += partHeader.length + range.length();
+                }
+                byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                contentLength += closing.length;
+
+                headers.add("Content-Disposition", UploadUtils.contentDisposition(fileName));
+                headers.add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+                headers.add("ETag", etag);
+                headers.add("Last-Modified", lastModified);
+                exchange.sendResponseHeaders(206, contentLength);
+                try (OutputStream oos = exchange.getResponseBody()) {
+                    WritableByteChannel responseChannel = StreamChannels.writable(oos);
+                    for (int i = 0; i < ranges.size(); i++) {
+                        ByteRange range = ranges.get(i);
+                        oos.write(partHeaders.get(i));
+                        try (PeerConnection connection = openPeer(peers, code, index, range.start, range.length())) {
+                            if (connection.isError()) throw new IOException("share " + code + " is gone: " + connection.header("error"));
+                            connection.transferTo(responseChannel);
                         }
                     }
+                    oos.write(closing);
                 }
             } catch (NumberFormatException e) {
-                String response = "Invalid port number";
+                String response = "Invalid file index";
                 exchange.sendResponseHeaders(400, response.getBytes().length);
                 try (OutputStream oos = exchange.getResponseBody()) {
                     oos.write(response.getBytes());
@@ -382,6 +1027,11 @@ public class FileController {
             } catch (Exception e) {
                 System.err.println("Error downloading the file: " + e.getMessage());
                 e.printStackTrace();
+                if (exchange.getResponseCode() != -1) {
+                    // Body already streaming: failing the exchange drops the connection without
+                    // ending the body, so the client sees the truncation
+                    throw e instanceof IOException io ? io : new IOException(e);
+                }
                 String response = "Error downloading file: " + e.getMessage();
                 headers.add("Content-Type", "text/plain");
                 exchange.sendResponseHeaders(500, response.getBytes().length);
@@ -391,32 +1041,204 @@ public class FileController {
             }
         }
 
-        private String getExtension(String fileName) {
-            int dotIndex = fileName.lastIndexOf('.');
-            if (dotIndex > 0) {
-                return fileName.substring(dotIndex);
+        /**
+         * Serves a whole file from the hot file cache, without a round trip through the sharer.
+         * Returns false when the file isn't cached and has to be fetched as usual.
+         */
+        private boolean sendCached(HttpExchange exchange, String code, int index, boolean gzip) throws IOException {
+            SharedFile file = fileSharer.find(code, index);
+            HotFileCache.Entry cached = file != null ? hotFiles.get(file) : null;
+            if (cached == null) return false;
+            if (!fileSharer.claimDownload(code, index)) {
+                sendNotFound(exchange);
+                return true;
+            }
+
+            Headers headers = exchange.getResponseHeaders();
+            // The same range support as the peer path advertises, see addFileHeaders
+            if (fileSharer.isLimited(code)) headers.set("Accept-Ranges", "none");
+            if (gzip && cached.size() >= MIN_COMPRESS_SIZE && ContentTypes.isCompressible(ContentTypes.forFileName(file.fileName))) {
+                addFileHeaders(headers, file.fileName, etagOf(file.hash, file.size, cached.modified), cached.modified, "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                // Not closed on failure: that would end the chunked body as if it were complete
+                OutputStream oos = new GZIPOutputStream(exchange.getResponseBody(), 64 * 1024);
+                StreamChannels.writable(oos).write(cached.content());
+                oos.close();
+            } else {
+                addFileHeaders(headers, file.fileName, etagOf(file.hash, file.size, cached.modified), cached.modified, null);
+                addDigest(headers, file.hash, file.crc32c >= 0 ? String.format("%08x", file.crc32c) : null);
+                exchange.sendResponseHeaders(200, cached.size());
+                OutputStream oos = exchange.getResponseBody();
+                WritableByteChannel channel = StreamChannels.writable(oos);
+                ByteBuffer content = cached.content();
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                oos.close();
+            }
+            return true;
+        }
+
+        /**
+         * Streams every file of the share as one ZIP archive, each read once from its peer straight
+         * into the archive. Already compressed files are STORED, the rest deflated. When every
+         * entry is STORED the archive length is known up front and sent as Content-Length.
+         */
+        private void sendArchive(HttpExchange exchange, List<InetSocketAddress> peers, String code) throws IOException {
+            // Metadata requests don't count as downloads, they give what the entries are sized from
+            List<String> fileNames = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();
+            List<Long> crcs = new ArrayList<>();
+            List<Long> modified = new ArrayList<>();
+            while (true) {
+                try (PeerConnection metadata = openPeer(peers, code, fileNames.size(), 0, 0)) {
+                    if (metadata.isError()) break;
+                    fileNames.add(String.valueOf(metadata.header("filename")));
+                    sizes.add(metadata.longHeader("size", 0));
+                    String crc = metadata.header("crc32");
+                    crcs.add(crc != null ? Long.parseLong(crc, 16) : -1);
+                    modified.add(metadata.longHeader("modified", 0));
+                }
+            }
+            if (fileNames.isEmpty()) {
+                sendNotFound(exchange);
+                return;
+            }
+
+            List<String> names = ZipLayout.entryNames(fileNames);
+            boolean[] stored = new boolean[names.size()];
+            boolean allStored = true;
+            for (int i = 0; i < names.size(); i++) {
+                // A STORED entry needs its CRC-32 before the data, files stored without one are deflated
+                stored[i] = crcs.get(i) >= 0 && !ContentTypes.isCompressible(ContentTypes.forFileName(fileNames.get(i)));
+                allStored &= stored[i];
+            }
+            long length = allStored ? ZipLayout.storedLength(names, sizes) : -1;
+
+            // The first transfer is opened before answering, so a share used up meanwhile is still a 404
+            PeerConnection connection = openPeer(peers, code, 0, 0, -1);
+            try {
+                if (connection.isError()) {
+                    sendNotFound(exchange);
+                    return;
+                }
+                Headers headers = exchange.getResponseHeaders();
+                headers.add("Content-Type", "application/zip");
+                headers.add("Content-Disposition", "attachment; filename=\"" + code + ".zip\"");
+                exchange.sendResponseHeaders(200, length >= 0 ? length : 0);
+
+                // Not closed on failure: a cut-off archive must not end like a complete one
+                ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024));
+                WritableByteChannel zipChannel = StreamChannels.writable(zip);
+                for (int i = 0; i < names.size(); i++) {
+                    if (i > 0) {
+                        connection.close();
+                        connection = openPeer(peers, code, i, 0, -1);
+                    }
+                    if (connection.isError()) throw new IOException("file " + i + " of " + code + ": " + connection.header("error"));
+                    ZipEntry entry = new ZipEntry(names.get(i));
+                    entry.setTime(ZipLayout.entryTime(modified.get(i)));
+                    if (stored[i]) {
+                        entry.setMethod(ZipEntry.STORED);
+                        entry.setSize(sizes.get(i));
+                        entry.setCompressedSize(sizes.get(i));
+                        entry.setCrc(crcs.get(i));
+                    }
+                    zip.putNextEntry(entry);
+                    connection.transferTo(zipChannel);
+                    zip.closeEntry();
+                }
+                zip.close();
+            } finally {
+                connection.close();
+            }
+        }
+
+        private void addFileHeaders(Headers headers, PeerConnection connection) {
+            addFileHeaders(headers, connection, null);
+        }
+
+        /**
+         * @param encoding content coding of the body, which also gets its own ETag
+         */
+        private void addFileHeaders(Headers headers, PeerConnection connection, String encoding) {
+            String fileName = connection.header("filename");
+            if (fileName == null) fileName = "downloaded-file";
+            if (connection.header("modified") != null) {
+                addFileHeaders(headers, fileName, etagOf(connection), connection.longHeader("modified", 0), encoding);
+            } else {
+                addFileHeaders(headers, fileName, null, 0, encoding);
+            }
+            if (encoding == null) addDigest(headers, connection.header("sha256"), connection.header("crc32c"));
+            // Ranges of limited shares are answered with the whole file, see handle()
+            if (connection.header("max-downloads") != null) headers.set("Accept-Ranges", "none");
+        }
+
+        private void addFileHeaders(Headers headers, String fileName, String etag, long modified, String encoding) {
+            headers.add("Content-Disposition", UploadUtils.contentDisposition(fileName));
+            headers.add("Content-Type", ContentTypes.forFileName(fileName));
+            if (encoding != null) headers.add("Content-Encoding", encoding);
+            if (etag != null) {
+                if (encoding != null) etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+                headers.add("ETag", etag);
+                headers.add("Last-Modified", lastModifiedOf(modified));
+            }
+        }
+
+        /**
+         * Digest of the whole identity file, as base64 per RFC 3230, so clients can check what they
+         * received. Left out for encoded bodies, which the digests don't describe.
+         */
+        private void addDigest(Headers headers, String sha256, String crc32c) {
+            List<String> digests = new ArrayList<>(2);
+            if (sha256 != null) digests.add("sha-256=" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(sha256)));
+            if (crc32c != null) digests.add("crc32c=" + Base64.getEncoder().encodeToString(HexFormat.of().parseHex(crc32c)));
+            if (!digests.isEmpty()) headers.add("Digest", String.join(", ", digests));
+        }
+
+        private boolean acceptsGzip(String acceptEncoding) {
+            if (acceptEncoding == null) return false;
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.trim().split(";");
+                if (!params[0].trim().equalsIgnoreCase("gzip")) continue;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
             }
-            return ".tmp";
+            return false;
+        }
+
+        private String etagOf(PeerConnection connection) {
+            return etagOf(connection.header("sha256"), connection.longHeader("size", 0), connection.longHeader("modified", 0));
+        }
+
+        private String etagOf(String hash, long size, long modified) {
+            if (hash != null) return "\"" + hash + "\"";
+            return "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+        }
+
+        private String lastModifiedOf(PeerConnection connection) {
+            return lastModifiedOf(connection.longHeader("modified", 0));
+        }
+
+        private String lastModifiedOf(long modified) {
+            return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(modified).atZone(ZoneOffset.UTC));
         }
 
-        private String getContentType(String fileName) {
-            String lower = fileName.toLowerCase();
-            if (lower.endsWith(".mp4")) return "video/mp4";
-            if (lower.endsWith(".webm")) return "video/webm";
-            if (lower.endsWith(".avi")) return "video/x-msvideo";
-            if (lower.endsWith(".mov")) return "video/quicktime";
-            if (lower.endsWith(".mkv")) return "video/x-matroska";
-            if (lower.endsWith(".mp3")) return "audio/mpeg";
-            if (lower.endsWith(".wav")) return "audio/wav";
-            if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
-            if (lower.endsWith(".png")) return "image/png";
-            if (lower.endsWith(".gif")) return "image/gif";
-            if (lower.endsWith(".pdf")) return "application/pdf";
-            if (lower.endsWith(".txt")) return "text/plain";
-            if (lower.endsWith(".html")) return "text/html";
-            if (lower.endsWith(".json")) return "application/json";
-            if (lower.endsWith(".zip")) return "application/zip";
-            return "application/octet-stream";
+        private void sendNotFound(HttpExchange exchange) throws IOException {
+            String response = "File not found";
+            exchange.sendResponseHeaders(404, response.getBytes().length);
+            try (OutputStream oos = exchange.getResponseBody()) {
+                oos.write(response.getBytes());
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,487 @@
+package p2p.http;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An exchange on an {@link HttpConnection}, with the same contract as the JDK server's so the
+ * existing handlers run on it unchanged.
+ *
+ * The response head is buffered together with the first body bytes and both go out in one
+ * write. A response length of 0 means chunked encoding, -1 no body at all.
+ */
+class AsyncHttpExchange extends HttpExchange {
+
+    private static final int OUT_BUFFER_SIZE = 64 * 1024;
+    // Unread request bodies up to this size are skipped to keep the connection, larger ones close it
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final HttpConnection connection;
+    private final HttpContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final RequestBody requestBody;
+    private final ResponseBody responseBody = new ResponseBody();
+    private InputStream in;
+    private OutputStream out;
+    private int responseCode = -1;
+    private boolean expectContinue;
+    private boolean closeConnection;
+
+    AsyncHttpExchange(HttpConnection connection, HttpContext context, String method, URI uri, String protocol,
+                      Headers requestHeaders) throws IOException {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+
+        String transferEncoding = requestHeaders.getFirst("Transfer-Encoding");
+        String contentLength = requestHeaders.getFirst("Content-Length");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            requestBody = new RequestBody(-1);
+            // A message with both could be read differently by something in front of us
+            if (contentLength != null) closeConnection = true;
+        } else if (contentLength != null) {
+            try {
+                long length = Long.parseLong(contentLength.trim());
+                if (length < 0) throw new NumberFormatException();
+                requestBody = new RequestBody(length);
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid Content-Length");
+            }
+        } else {
+            requestBody = new RequestBody(0);
+        }
+        this.expectContinue = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        if (protocol.equals("HTTP/1.0")) {
+            if (!"keep-alive".equalsIgnoreCase(connectionHeader)) closeConnection = true;
+        } else if ("close".equalsIgnoreCase(connectionHeader)) {
+            closeConnection = true;
+        }
+        this.in = requestBody;
+        this.out = responseBody;
+    }
+
+    /**
+     * Completes whatever the handler left open and returns whether the connection can take
+     * another request.
+     */
+    boolean finish() {
+        try {
+            if (responseCode == -1) {
+                closeConnection = true;
+                sendResponseHeaders(500, -1);
+            }
+            responseBody.close();
+        } catch (IOException e) {
+            return false;
+        }
+        if (closeConnection) return false;
+        try {
+            return requestBody.skipRest(MAX_DRAIN);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Marks the connection to be closed once this exchange is done.
+     */
+    void closeConnection() {
+        closeConnection = true;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            closeConnection = true;
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return out;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) throw new IOException("Headers already sent");
+        responseCode = rCode;
+        // The client waits for a final status instead of the 100 now
+        expectContinue = false;
+
+        boolean noBody = method.equals("HEAD") || rCode == 204 || rCode == 304 || rCode < 200;
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) closeConnection = true;
+        responseHeaders.remove("Content-length");
+        responseHeaders.remove("Transfer-encoding");
+        if (noBody) {
+            if (method.equals("HEAD") && responseLength > 0) responseHeaders.set("Content-length", String.valueOf(responseLength));
+            responseBody.expect(0, false);
+        } else if (responseLength > 0) {
+            responseHeaders.set("Content-length", String.valueOf(responseLength));
+            responseBody.expect(responseLength, false);
+        } else if (responseLength == 0) {
+            if (protocol.equals("HTTP/1.0")) {
+                // No chunked encoding in 1.0, the end of the body is the end of the connection
+                closeConnection = true;
+                responseBody.expect(-1, false);
+            } else {
+                responseHeaders.set("Transfer-encoding", "chunked");
+                responseBody.expect(-1, true);
+            }
+        } else {
+            responseHeaders.set("Content-length", "0");
+            responseBody.expect(0, false);
+        }
+        if (closeConnection) responseHeaders.set("Connection", "close");
+        responseHeaders.set("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+
+        StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+        for (Map.Entry<String, java.util.List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        responseBody.writeHead(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (noBody || responseLength < 0) responseBody.close();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) in = i;
+        if (o != null) out = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static String reasonPhrase(int code) {
+        return switch (code) {
+            case 100 -> "Continue";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 413 -> "Payload Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 503 -> "Service Unavailable";
+            case 507 -> "Insufficient Storage";
+            default -> "";
+        };
+    }
+
+    /**
+     * A request that can't be parsed, answered with 400 before any handler sees it.
+     */
+    static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The request body, fixed length or chunked, read from the connection's buffer first.
+     */
+    private class RequestBody extends InputStream {
+        private final boolean chunked;
+        // Bytes left in the body, or in the current chunk when chunked
+        private long remaining;
+        private boolean done;
+
+        RequestBody(long length) {
+            this.chunked = length < 0;
+            this.remaining = chunked ? 0 : length;
+            this.done = length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (done) return -1;
+            if (expectContinue) {
+                expectContinue = false;
+                connection.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            if (remaining == 0 && chunked && !nextChunk()) return -1;
+
+            int max = (int) Math.min(len, remaining);
+            int count;
+            if (connection.buffered() > 0) {
+                count = connection.takeBuffered(b, off, max);
+            } else {
+                count = connection.readDirect(b, off, max);
+                if (count == -1) throw new EOFException("Connection closed with " + remaining + " body bytes to go");
+            }
+            remaining -= count;
+            if (remaining == 0 && !chunked) done = true;
+            if (remaining == 0 && chunked) expectLineEnd();
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return done ? 0 : (int) Math.min(remaining, connection.buffered());
+        }
+
+        /**
+         * Reads the next chunk size, returns false after the last chunk and its trailers.
+         */
+        private boolean nextChunk() throws IOException {
+            String line = readLine();
+            int extension = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (remaining > 0) return true;
+            while (!readLine().isEmpty()) {
+                // Trailers are not used
+            }
+            done = true;
+            return false;
+        }
+
+        private void expectLineEnd() throws IOException {
+            if (!readLine().isEmpty()) throw new IOException("Chunk longer than its size");
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (connection.buffered() == 0 && connection.fill() == -1) throw new EOFException("Connection closed inside a chunked body");
+                int c = connection.takeByte();
+                if (c == '\n') break;
+                if (c != '\r') line.append((char) c);
+                if (line.length() > 4096) throw new IOException("Chunk header too long");
+            }
+            return line.toString();
+        }
+
+        /**
+         * Skips what the handler didn't read, up to {@code max} bytes. Returns false when more is left.
+         */
+        boolean skipRest(long max) throws IOException {
+            // A client still waiting for 100 Continue hasn't sent the body and won't
+            if (expectContinue) return remaining == 0 && !chunked;
+            byte[] skip = new byte[8192];
+            long skipped = 0;
+            while (!done && skipped <= max) {
+                int count = read(skip, 0, skip.length);
+                if (count == -1) break;
+                skipped += count;
+            }
+            return done;
+        }
+    }
+
+    /**
+     * The response, written through a buffer that also holds the head until the first flush.
+     */
+    private class ResponseBody extends OutputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+        private boolean chunked;
+        // Bytes still owed for a fixed length, -1 when chunked or delimited by the connection close
+        private long remaining;
+        private boolean closed;
+
+        void expect(long length, boolean chunked) {
+            this.remaining = length;
+            this.chunked = chunked;
+        }
+
+        void writeHead(byte[] head) throws IOException {
+            writeRaw(head, 0, head.length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Response body is closed");
+            if (responseCode == -1) throw new IOException("sendResponseHeaders() must be called first");
+            if (len == 0) return;
+            if (remaining >= 0) {
+                if (len > remaining) {
+                    closeConnection = true;
+                    throw new IOException("Too many bytes for the announced Content-Length");
+                }
+                remaining -= len;
+            }
+            if (chunked) {
+                // Large writes go out as one chunk, small ones are gathered in the buffer by flush()
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                writeRaw(size, 0, size.length);
+                writeRaw(b, off, len);
+                writeRaw(CRLF, 0, 2);
+            } else {
+                writeRaw(b, off, len);
+            }
+        }
+
+        private void writeRaw(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining()) {
+                flushBuffer();
+                if (len > buffer.capacity() / 2) {
+                    connection.write(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+            }
+            buffer.put(b, off, len);
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            try {
+                connection.write(buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed && buffer.position() > 0) flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (remaining > 0) {
+                    closeConnection = true;
+                    throw new IOException("insufficient bytes written to stream");
+                }
+                if (chunked) writeRaw(LAST_CHUNK, 0, LAST_CHUNK.length);
+            } finally {
+                if (buffer.position() > 0) flushBuffer();
+            }
+        }
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+}
@@ -0,0 +1,335 @@
+package p2p.http;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An HTTP/1.1 server on asynchronous socket channels, usable wherever the JDK's
+ * {@link HttpServer} is.
+ *
+ * Connections are accepted by a completion handler and each one runs as a task on the
+ * executor, where it reads requests and calls the handlers. Handlers keep their blocking
+ * streams, but every read and write underneath is an asynchronous operation the task only
+ * parks on, so with virtual threads an idle or slow connection holds no carrier thread.
+ * Connections are kept alive between requests and pipelined requests are answered in order.
+ */
+public class AsyncHttpServer extends HttpServer {
+
+    private final long keepAliveMillis = Long.getLong("p2p.http.keepAliveSeconds", 30) * 1000;
+    private final long readTimeoutMillis = Long.getLong("p2p.http.readTimeoutSeconds", 60) * 1000;
+
+    private final List<AsyncHttpContext> contexts = new ArrayList<>();
+    private final Set<HttpConnection> connections = ConcurrentHashMap.newKeySet();
+    // Connections in the middle of an exchange, which stop() gives time to finish
+    private final Set<HttpConnection> busy = ConcurrentHashMap.newKeySet();
+    private AsynchronousServerSocketChannel listener;
+    private InetSocketAddress address;
+    private int backlog;
+    private Executor executor = AsyncHttpServer::startVirtual;
+    private volatile boolean stopping;
+
+    public static AsyncHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        AsyncHttpServer server = new AsyncHttpServer();
+        if (address != null) server.bind(address, backlog);
+        return server;
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        if (listener != null) throw new IllegalStateException("Server is already bound");
+        listener = AsynchronousServerSocketChannel.open();
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(addr, backlog);
+        this.address = (InetSocketAddress) listener.getLocalAddress();
+        this.backlog = backlog;
+    }
+
+    @Override
+    public void start() {
+        if (listener == null) throw new IllegalStateException("Server is not bound");
+        listener.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void attachment) {
+                listener.accept(null, this);
+                HttpConnection connection = new HttpConnection(channel, readTimeoutMillis);
+                connections.add(connection);
+                try {
+                    executor.execute(() -> serve(connection));
+                } catch (RejectedExecutionException e) {
+                    connections.remove(connection);
+                    connection.close();
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                if (!listener.isOpen()) return;
+                System.err.println("Error accepting connection: " + exc.getMessage());
+                listener.accept(null, this);
+            }
+        });
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor == null ? AsyncHttpServer::startVirtual : executor;
+    }
+
+    /**
+     * Without an executor every connection gets a virtual thread; running it on the channel
+     * group's thread, like the JDK server runs on its dispatcher, would block the completions.
+     */
+    private static void startVirtual(Runnable task) {
+        Thread.ofVirtual().name("http-connection").start(task);
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stops accepting, then gives exchanges in progress up to {@code delay} seconds before
+     * closing every connection.
+     */
+    @Override
+    public void stop(int delay) {
+        stopping = true;
+        try {
+            if (listener != null) listener.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (!busy.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        connections.forEach(HttpConnection::close);
+    }
+
+    @Override
+    public synchronized HttpContext createContext(String path, HttpHandler handler) {
+        AsyncHttpContext context = (AsyncHttpContext) createContext(path);
+        context.setHandler(handler);
+        return context;
+    }
+
+    @Override
+    public synchronized HttpContext createContext(String path) {
+        if (!path.startsWith("/")) throw new IllegalArgumentException("Context path must start with /: " + path);
+        for (AsyncHttpContext context : contexts) {
+            if (context.path.equals(path)) throw new IllegalArgumentException("Context already exists: " + path);
+        }
+        AsyncHttpContext context = new AsyncHttpContext(path, this);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public synchronized void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.path.equals(path))) {
+            throw new IllegalArgumentException("No context for " + path);
+        }
+    }
+
+    @Override
+    public synchronized void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) throw new IllegalArgumentException("Context is not on this server");
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * The context with the longest path the request path starts with, as the JDK server matches.
+     */
+    private synchronized AsyncHttpContext findContext(String path) {
+        AsyncHttpContext found = null;
+        for (AsyncHttpContext context : contexts) {
+            if (path.startsWith(context.path) && (found == null || context.path.length() > found.path.length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    private void serve(HttpConnection connection) {
+        try (AsynchronousSocketChannel channel = connection.channel) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            while (!stopping) {
+                String head;
+                try {
+                    head = connection.readHead(keepAliveMillis);
+                } catch (HttpConnection.HeadTooLargeException e) {
+                    sendError(connection, 431);
+                    return;
+                }
+                if (head == null) return;
+
+                busy.add(connection);
+                try {
+                    if (!exchange(connection, head)) return;
+                } finally {
+                    busy.remove(connection);
+                }
+            }
+        } catch (IOException e) {
+            // The client went away or timed out, the connection is closed either way
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     * Runs one request through its context, returns whether the connection can be reused.
+     */
+    private boolean exchange(HttpConnection connection, String head) throws IOException {
+        AsyncHttpExchange exchange;
+        try {
+            exchange = parse(connection, head);
+        } catch (AsyncHttpExchange.BadRequestException e) {
+            sendError(connection, 400);
+            return false;
+        }
+        AsyncHttpContext context = (AsyncHttpContext) exchange.getHttpContext();
+        if (context == null || context.getHandler() == null) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            byte[] body = "No context found for request".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            return exchange.finish();
+        }
+        try {
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error handling " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e);
+            // A response under way is cut off rather than ended, so the client sees it failed
+            if (exchange.getResponseCode() != -1) return false;
+            exchange.closeConnection();
+        }
+        if (Thread.currentThread().isInterrupted()) return false;
+        return exchange.finish();
+    }
+
+    private AsyncHttpExchange parse(HttpConnection connection, String head) throws IOException {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new AsyncHttpExchange.BadRequestException("Malformed request line");
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            throw new AsyncHttpExchange.BadRequestException("Malformed request target");
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) throw new AsyncHttpExchange.BadRequestException("Malformed header line");
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        String path = uri.getRawPath() == null ? "/" : uri.getPath();
+        return new AsyncHttpExchange(connection, findContext(path), requestLine[0], uri, requestLine[2], headers);
+    }
+
+    private static void sendError(HttpConnection connection, int code) throws IOException {
+        String reason = code == 431 ? "Request Header Fields Too Large" : "Bad Request";
+        String response = "HTTP/1.1 " + code + " " + reason + "\r\nContent-length: 0\r\nConnection: close\r\n\r\n";
+        connection.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncHttpServer " + address + " (backlog " + backlog + ")";
+    }
+
+    static class AsyncHttpContext extends HttpContext {
+        private final String path;
+        private final AsyncHttpServer server;
+        private final List<Filter> filters = new ArrayList<>();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private volatile HttpHandler handler;
+
+        AsyncHttpContext(String path, AsyncHttpServer server) {
+            this.path = path;
+            this.server = server;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            if (handler == null) throw new NullPointerException("handler");
+            if (this.handler != null) throw new IllegalArgumentException("Handler already set");
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return server;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        /**
+         * Authentication is not implemented, refusing an authenticator beats ignoring it.
+         */
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            if (auth != null) throw new UnsupportedOperationException("Authenticators are not supported");
+            return null;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package p2p.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One client connection of the {@link AsyncHttpServer}, with the bytes read ahead of the
+ * request being handled.
+ *
+ * Reads and writes are asynchronous channel operations; the thread handling the exchange only
+ * parks until they complete, so a virtual thread costs no carrier while a client is slow.
+ * Whatever is read past the current request stays in the buffer for the next one, which is
+ * what makes pipelined requests work.
+ */
+class HttpConnection {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    final AsynchronousSocketChannel channel;
+    private final long readTimeoutMillis;
+    // Always in read mode: position..limit are the bytes not consumed yet
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+    HttpConnection(AsynchronousSocketChannel channel, long readTimeoutMillis) {
+        this.channel = channel;
+        this.readTimeoutMillis = readTimeoutMillis;
+        in.flip();
+    }
+
+    /**
+     * Reads the request line and headers up to the empty line, or returns null when the client
+     * closes the connection or stays idle for the timeout before sending anything.
+     */
+    String readHead(long idleTimeoutMillis) throws IOException {
+        int searched = 0;
+        while (true) {
+            for (int i = in.position() + searched; i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    String head = new String(in.array(), in.position(), i - in.position(), StandardCharsets.ISO_8859_1);
+                    in.position(i + 4);
+                    return head;
+                }
+            }
+            searched = Math.max(0, in.remaining() - 3);
+            if (in.position() == 0 && in.limit() == in.capacity()) throw new HeadTooLargeException();
+            boolean idle = !in.hasRemaining();
+            int read;
+            try {
+                read = fill(idle ? idleTimeoutMillis : readTimeoutMillis);
+            } catch (SocketTimeoutException e) {
+                if (idle) return null;
+                throw e;
+            }
+            if (read == -1) {
+                if (idle) return null;
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+        }
+    }
+
+    int buffered() {
+        return in.remaining();
+    }
+
+    /**
+     * Takes up to {@code max} bytes of what is buffered.
+     */
+    int takeBuffered(byte[] b, int off, int max) {
+        int count = Math.min(max, in.remaining());
+        in.get(b, off, count);
+        return count;
+    }
+
+    int takeByte() {
+        return in.get() & 0xff;
+    }
+
+    /**
+     * Reads straight into the caller's array. Only for body bytes the request still owes,
+     * so nothing of the next request can end up there.
+     */
+    int readDirect(byte[] b, int off, int len) throws IOException {
+        return await(channel.read(ByteBuffer.wrap(b, off, len)), readTimeoutMillis);
+    }
+
+    /**
+     * Reads more bytes into the buffer and returns how many, -1 at end of stream.
+     */
+    int fill() throws IOException {
+        return fill(readTimeoutMillis);
+    }
+
+    private int fill(long timeoutMillis) throws IOException {
+        in.compact();
+        try {
+            return await(channel.read(in), timeoutMillis);
+        } finally {
+            in.flip();
+        }
+    }
+
+    void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            await(channel.write(buffer), readTimeoutMillis);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    private int await(Future<Integer> operation, long timeoutMillis) throws IOException {
+        try {
+            return timeoutMillis > 0 ? operation.get(timeoutMillis, TimeUnit.MILLISECONDS) : operation.get();
+        } catch (TimeoutException e) {
+            // A timed out operation leaves the channel unusable
+            operation.cancel(true);
+            close();
+            throw new SocketTimeoutException("No progress for " + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    static class HeadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HeadTooLargeException() {
+            super("Request head is larger than " + BUFFER_SIZE + " bytes");
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package p2p.service;
+
+import p2p.utils.TokenBucket;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides whether an exchange may start and shapes the bandwidth of the ones that do.
+ *
+ * An exchange is admitted against a concurrency limit and a budget of body bytes in flight,
+ * both globally and per client address, with the body size taken from Content-Length when the
+ * client sends one. Turning work away up front keeps the exchanges already running fast,
+ * instead of letting every one of them slow down until they all time out.
+ */
+public class AdmissionControl {
+
+    private final int maxConcurrent;
+    private final int maxPerClient;
+    private final long maxBytes;
+    private final long maxClientBytes;
+    private final long clientBytesPerSecond;
+    private final TokenBucket bandwidth;
+    private final Map<InetAddress, Client> clients = new HashMap<>();
+    private int active;
+    private long bytes;
+
+    /**
+     * @param maxBytes             body bytes all admitted exchanges may declare together
+     * @param maxClientBytes       body bytes the exchanges of one client may declare together
+     * @param bytesPerSecond       bandwidth shared by all exchanges, 0 for unlimited
+     * @param clientBytesPerSecond bandwidth of each client, 0 for unlimited
+     */
+    public AdmissionControl(int maxConcurrent, int maxPerClient, long maxBytes, long maxClientBytes,
+                            long bytesPerSecond, long clientBytesPerSecond) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerClient = maxPerClient;
+        this.maxBytes = maxBytes;
+        this.maxClientBytes = Math.min(maxClientBytes, maxBytes);
+        this.clientBytesPerSecond = clientBytesPerSecond;
+        this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * Admits an exchange that will send up to the given number of body bytes, 0 when unknown.
+     * The permit has to be closed once the exchange is done.
+     */
+    public synchronized Permit admit(InetAddress address, long declaredBytes) throws Rejected {
+        if (declaredBytes > maxClientBytes) {
+            throw new Rejected(413, "Request body is larger than " + maxClientBytes + " bytes");
+        }
+        Client client = clients.get(address);
+        if (client != null && (client.exchanges >= maxPerClient || client.bytes + declaredBytes > maxClientBytes)) {
+            throw new Rejected(429, "Too many requests from this client");
+        }
+        if (active >= maxConcurrent || bytes + declaredBytes > maxBytes) {
+            throw new Rejected(503, "Server is busy");
+        }
+        if (client == null) {
+            client = new Client(clientBytesPerSecond > 0 ? new TokenBucket(clientBytesPerSecond) : null);
+            clients.put(address, client);
+        }
+        client.exchanges++;
+        client.bytes += declaredBytes;
+        active++;
+        bytes += declaredBytes;
+        return new Permit(address, client, declaredBytes);
+    }
+
+    public synchronized int active() {
+        return active;
+    }
+
+    public synchronized long bytesInFlight() {
+        return bytes;
+    }
+
+    public boolean isShaped() {
+        return bandwidth != null || clientBytesPerSecond > 0;
+    }
+
+    private synchronized void release(InetAddress address, Client client, long declaredBytes) {
+        active--;
+        bytes -= declaredBytes;
+        client.bytes -= declaredBytes;
+        // The client's bucket goes with it, a returning client starts with one second of burst
+        if (--client.exchanges == 0) clients.remove(address);
+    }
+
+    private static class Client {
+        final TokenBucket bandwidth;
+        int exchanges;
+        long bytes;
+
+        Client(TokenBucket bandwidth) {
+            this.bandwidth = bandwidth;
+        }
+    }
+
+    public class Permit implements AutoCloseable {
+        private final InetAddress address;
+        private final Client client;
+        private final long declaredBytes;
+        private boolean closed;
+
+        private Permit(InetAddress address, Client client, long declaredBytes) {
+            this.address = address;
+            this.client = client;
+            this.declaredBytes = declaredBytes;
+        }
+
+        /**
+         * Blocks until the client's and the global bandwidth allow the bytes just moved.
+         */
+        public void throttle(long count) throws InterruptedIOException {
+            if (client.bandwidth != null) client.bandwidth.acquire(count);
+            if (bandwidth != null) bandwidth.acquire(count);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(address, client, declaredBytes);
+        }
+    }
+
+    /**
+     * An exchange turned away, with the status to answer it with.
+     */
+    public static class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+
+        public Rejected(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-addressed upload storage.
+ *
+ * Uploads stream into an incoming file while their SHA-256, CRC32C and CRC-32 are computed
+ * in the same pass.
+ * On commit the file is moved to blobs/&lt;hash&gt;, or dropped if that blob already exists,
+ * so each distinct content is kept on disk once. Blobs are reference counted by the
+ * shares that use them and deleted when the last one lets go. A blob can also have a gzip
+ * copy next to it (&lt;hash&gt;.gz), made once at upload and served as is to clients that accept it.
+ */
+public class BlobStore {
+
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
+    // A gzip copy is only kept when it saves at least a tenth of the blob
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final long[] UNKNOWN_CRCS = {-1, -1};
+
+    private final Path blobDir;
+    private final Path incomingDir;
+    private final ConcurrentHashMap<String, Integer> references;
+    // {CRC32C, CRC-32} of referenced blobs, kept with the counts so a share reusing a blob gets them too
+    private final ConcurrentHashMap<String, long[]> checksums = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    public BlobStore(String root) throws IOException {
+        this.blobDir = Path.of(root, "blobs");
+        this.incomingDir = Path.of(root, "incoming");
+        this.references = new ConcurrentHashMap<>();
+        Files.createDirectories(blobDir);
+        Files.createDirectories(incomingDir);
+    }
+
+    public static boolean isValidHash(String hash) {
+        return hash != null && SHA256_HEX.matcher(hash).matches();
+    }
+
+    public Upload begin() throws IOException {
+        return new Upload(incomingFile());
+    }
+
+    /**
+     * A fresh path in the incoming directory, on the same file system as the blobs.
+     */
+    public Path incomingFile() {
+        return incomingDir.resolve(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Hashes a complete file from {@link #incomingFile()} and moves it into the store.
+     */
+    public SharedFile adopt(Path incoming, String fileName) throws IOException {
+        MessageDigest digest = sha256();
+        CRC32C crc = new CRC32C();
+        CRC32 zipCrc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(incoming, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                zipCrc.update(buffer.duplicate());
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(incoming);
+            throw e;
+        }
+        long[] crcs = {crc.getValue(), zipCrc.getValue()};
+        return store(incoming, HexFormat.of().formatHex(digest.digest()), crcs, Files.size(incoming), fileName);
+    }
+
+    /**
+     * Moves an incoming file to its blob, or drops it when the content is already stored.
+     */
+    private SharedFile store(Path incoming, String hash, long[] crcs, long size, String fileName) throws IOException {
+        Path blob = blobDir.resolve(hash);
+        try {
+            references.compute(hash, (key, current) -> {
+                try {
+                    if (current == null && !Files.exists(blob)) {
+                        Files.move(incoming, blob, StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.delete(incoming);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (current == null) storedBytes.addAndGet(size);
+                checksums.put(hash, crcs);
+                return current == null ? 1 : current + 1;
+            });
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(incoming);
+            throw e.getCause();
+        }
+        return new SharedFile(fileName, blob.toString(), size, hash, crcs[0], crcs[1]);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String compressedPath(String path) {
+        return path + ".gz";
+    }
+
+    /**
+     * Stores a gzip copy of the blob unless one exists or compression wouldn't pay off.
+     */
+    public void compress(SharedFile file) throws IOException {
+        if (file.hash == null) return;
+        Path compressed = Path.of(compressedPath(file.path));
+        if (Files.exists(compressed)) return;
+
+        Path incoming = incomingDir.resolve(UUID.randomUUID() + ".gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(incoming), 64 * 1024)) {
+                Files.copy(Path.of(file.path), out);
+            }
+            if (Files.size(incoming) <= file.size * MAX_COMPRESSED_RATIO) {
+                Files.move(incoming, compressed, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(incoming);
+        }
+    }
+
+    /**
+     * References an existing blob under a new file name, or returns null if the
+     * content isn't stored here. Lets a client skip uploading bytes we already have, but the
+     * hash proves nothing about holding the bytes, so only trusted callers may pass one in.
+     */
+    public SharedFile acquire(String hash, String fileName) throws IOException {
+        if (!isValidHash(hash)) return null;
+        Path blob = blobDir.resolve(hash);
+        long[] size = {-1};
+        Integer count;
+        try {
+            count = references.compute(hash, (key, current) -> {
+                try {
+                    if (current != null) {
+                        size[0] = Files.size(blob);
+                        return current + 1;
+                    }
+                    // Blob left from an earlier run, adopt it
+                    if (!Files.exists(blob)) return null;
+                    size[0] = Files.size(blob);
+                    storedBytes.addAndGet(size[0]);
+                    return 1;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (count == null) return null;
+        long[] crcs = checksums.getOrDefault(hash, UNKNOWN_CRCS);
+        return new SharedFile(fileName, blob.toString(), size[0], hash, crcs[0], crcs[1]);
+    }
+
+    /**
+     * Re-takes a reference held by a share restored from the journal. The blob isn't
+     * checked on disk, so restoring many shares costs no file system calls.
+     */
+    public void restore(SharedFile file) {
+        if (file.hash == null) return;
+        references.compute(file.hash, (key, current) -> {
+            if (file.crc32c >= 0 || file.crc32 >= 0) checksums.put(key, new long[]{file.crc32c, file.crc32});
+            if (current != null) return current + 1;
+            storedBytes.addAndGet(file.size);
+            return 1;
+        });
+    }
+
+    /**
+     * Bytes of the blobs that shares currently reference, gzip copies not included.
+     */
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Deletes files in the incoming directory that haven't been written to for the given time,
+     * left behind by uploads that died without cleaning up. Returns how many were deleted.
+     *
+     * @param keep incoming files that still belong to an upload, however long it has been idle
+     */
+    public int sweepIncoming(long idleMillis, Set<Path> keep, int max) throws IOException {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(incomingDir)) {
+            for (Path file : files) {
+                if (deleted >= max) break;
+                if (keep.contains(file)) continue;
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < cutoff && Files.deleteIfExists(file)) deleted++;
+                } catch (NoSuchFileException e) {
+                    // Committed or aborted since the listing
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Deletes blobs, and gzip copies, that no share references and that are older than the given
+     * age, such as blobs of shares lost with the journal. Returns how many files were deleted.
+     */
+    public int sweepBlobs(long minAgeMillis, int max) throws IOException {
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(blobDir)) {
+            for (Path file : files) {
+                if (deleted >= max) break;
+                String hash = file.getFileName().toString();
+                if (hash.endsWith(".gz")) hash = hash.substring(0, hash.length() - ".gz".length());
+                if (!isValidHash(hash) || references.containsKey(hash)) continue;
+                // Decided under the hash's lock, so a concurrent upload or acquire can't take it meanwhile
+                boolean[] removed = {false};
+                references.compute(hash, (key, current) -> {
+                    if (current != null) return current;
+                    try {
+                        if (Files.getLastModifiedTime(file).toMillis() < cutoff) removed[0] = Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Gone already
+                    }
+                    return null;
+                });
+                if (removed[0]) deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    public void release(SharedFile file) {
+        if (file.hash == null) {
+            // Not a blob, the share owns the file outright
+            try {
+                Files.deleteIfExists(Path.of(file.path));
+            } catch (IOException e) {
+                System.err.println("Error deleting " + file.path + ": " + e.getMessage());
+            }
+            return;
+        }
+        references.computeIfPresent(file.hash, (key, current) -> {
+            if (current > 1) return current - 1;
+            storedBytes.addAndGet(-file.size);
+            checksums.remove(key);
+            try {
+                Files.deleteIfExists(blobDir.resolve(key));
+                Files.deleteIfExists(Path.of(compressedPath(blobDir.resolve(key).toString())));
+            } catch (IOException e) {
+                System.err.println("Error deleting blob " + key + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * An upload in progress. Bytes written are hashed and checksummed on the way to disk.
+     */
+    public class Upload implements WritableByteChannel {
+
+        private final Path path;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final CRC32C crc = new CRC32C();
+        private final CRC32 zipCrc = new CRC32();
+        private long size;
+
+        private Upload(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.digest = sha256();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer written = src.duplicate();
+            int count = channel.write(src);
+            written.limit(written.position() + count);
+            crc.update(written.duplicate());
+            zipCrc.update(written.duplicate());
+            digest.update(written);
+            size += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Finishes the upload and returns it as a stored file, deduplicated against existing blobs.
+         */
+        public SharedFile commit(String fileName) throws IOException {
+            channel.close();
+            return store(path, HexFormat.of().formatHex(digest.digest()), new long[]{crc.getValue(), zipCrc.getValue()}, size, fileName);
+        }
+
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Error discarding upload " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
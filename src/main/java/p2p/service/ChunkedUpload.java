@@ -0,0 +1,165 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A large upload sent as numbered chunks, in any order and over any number of connections.
+ *
+ * The target file is sized up front and every chunk is written at its own offset with
+ * positional writes, so concurrent chunks never contend and nothing is copied to assemble
+ * the file. A chunk only counts once its CRC32C matches, which is what lets an interrupted
+ * client ask for the missing chunks and resend just those.
+ */
+public class ChunkedUpload {
+
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    public final String id;
+    public final String fileName;
+    public final long size;
+    public final int chunkSize;
+    public final int maxDownloads;
+    public final long ttlSeconds;
+    public final Path path;
+
+    private final FileChannel channel;
+    private final BitSet received;
+    private int writers;
+    private boolean closed;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    public ChunkedUpload(String id, Path path, String fileName, long size, int chunkSize, int maxDownloads, long ttlSeconds) throws IOException {
+        if (size <= 0) throw new ChunkException("size must be positive");
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new ChunkException("chunkSize must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        if (chunks > Integer.MAX_VALUE) throw new ChunkException("too many chunks");
+        this.id = id;
+        this.path = path;
+        this.fileName = fileName;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.maxDownloads = maxDownloads;
+        this.ttlSeconds = ttlSeconds;
+        this.received = new BitSet((int) chunks);
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(size);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    public int chunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * Writes one chunk from the body and returns whether it matched its checksum.
+     * A chunk that is sent again replaces the earlier copy.
+     */
+    public boolean writeChunk(int index, ReadableByteChannel body, int crc32c) throws IOException {
+        if (index < 0 || index >= chunkCount()) throw new ChunkException("no chunk " + index);
+        synchronized (this) {
+            if (closed) throw new ChunkException("upload is already complete");
+            received.clear(index);
+            writers++;
+        }
+        lastActivity = System.currentTimeMillis();
+        try {
+            long offset = (long) index * chunkSize;
+            long length = chunkLength(index);
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long written = 0;
+            while (true) {
+                int read = body.read(buffer);
+                if (read != -1 && buffer.hasRemaining()) continue;
+                buffer.flip();
+                if (written + buffer.remaining() > length) throw new ChunkException("chunk " + index + " is longer than " + length + " bytes");
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, offset + written);
+                }
+                buffer.clear();
+                if (read == -1) break;
+            }
+            if (written != length) throw new ChunkException("chunk " + index + " has " + written + " of " + length + " bytes");
+
+            lastActivity = System.currentTimeMillis();
+            if ((int) crc.getValue() != crc32c) return false;
+            synchronized (this) {
+                received.set(index);
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                writers--;
+            }
+        }
+    }
+
+    /**
+     * Epoch millis of the last chunk started or finished, to tell abandoned uploads apart.
+     */
+    public long lastActivity() {
+        return lastActivity;
+    }
+
+    public synchronized List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = received.nextClearBit(0); i < chunkCount(); i = received.nextClearBit(i + 1)) {
+            missing.add(i);
+        }
+        return missing;
+    }
+
+    /**
+     * Stops accepting chunks once every one has arrived and none is still being written.
+     */
+    public synchronized boolean finish() throws IOException {
+        if (closed) return false;
+        if (writers > 0 || received.cardinality() < chunkCount()) return false;
+        closed = true;
+        channel.force(false);
+        channel.close();
+        return true;
+    }
+
+    public synchronized void abort() {
+        closed = true;
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Error discarding chunked upload " + id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A request that doesn't fit the upload, answered with 400.
+     */
+    public static class ChunkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ChunkException(String message) {
+            super(message);
+        }
+    }
+}
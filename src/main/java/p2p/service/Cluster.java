@@ -0,0 +1,126 @@
+package p2p.service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static set of nodes that split the share codes between them on a consistent-hash ring.
+ *
+ * Every node is named by the address of its transfer port, and every node has to be given the
+ * same list, so they all compute the same ring without talking to each other. The node a code
+ * hashes to owns the share; the nodes after it on the ring hold its replicas. Each node is
+ * placed at many points on the ring to keep the split even.
+ */
+public class Cluster {
+
+    private static final int POINTS_PER_NODE = 128;
+
+    public final String selfName;
+    public final InetSocketAddress self;
+    public final int replicas;
+    private final List<InetSocketAddress> nodes;
+    private final long[] points;
+    private final InetSocketAddress[] pointOwners;
+
+    /**
+     * @param nodes    transfer addresses of all nodes, including this one
+     * @param replicas copies of each share to keep, the owner's included
+     */
+    public Cluster(String self, List<String> nodes, int replicas) {
+        if (!nodes.contains(self)) throw new IllegalArgumentException(self + " is not one of the cluster nodes " + nodes);
+        this.selfName = self;
+        this.self = parseAddress(self);
+        this.nodes = new ArrayList<>();
+        this.replicas = Math.max(1, Math.min(replicas, nodes.size()));
+
+        long[][] ring = new long[nodes.size() * POINTS_PER_NODE][];
+        for (int n = 0; n < nodes.size(); n++) {
+            this.nodes.add(parseAddress(nodes.get(n)));
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                ring[n * POINTS_PER_NODE + i] = new long[]{hash(nodes.get(n) + "#" + i), n};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[ring.length];
+        pointOwners = new InetSocketAddress[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            pointOwners[i] = this.nodes.get((int) ring[i][1]);
+        }
+    }
+
+    public boolean owns(String code) {
+        return owner(code).equals(self);
+    }
+
+    public InetSocketAddress owner(String code) {
+        return pointOwners[firstPoint(code)];
+    }
+
+    /**
+     * Every node in the order a share is looked for: the owner, then its replicas, then the rest.
+     */
+    public List<InetSocketAddress> nodesFor(String code) {
+        List<InetSocketAddress> found = new ArrayList<>(nodes.size());
+        int start = firstPoint(code);
+        for (int i = 0; i < points.length && found.size() < nodes.size(); i++) {
+            InetSocketAddress node = pointOwners[(start + i) % points.length];
+            if (!found.contains(node)) found.add(node);
+        }
+        return found;
+    }
+
+    /**
+     * The nodes other than the owner that should hold a copy of the share.
+     */
+    public List<InetSocketAddress> replicasOf(String code) {
+        return nodesFor(code).subList(1, replicas);
+    }
+
+    public boolean isMember(InetSocketAddress address) {
+        return nodes.contains(address);
+    }
+
+    /**
+     * Whether a connection from this address comes from one of the nodes, whatever its port.
+     */
+    public boolean isMemberHost(InetAddress address) {
+        if (address == null) return false;
+        for (InetSocketAddress node : nodes) {
+            if (address.equals(node.getAddress())) return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    private int firstPoint(String code) {
+        int index = Arrays.binarySearch(points, hash(code));
+        if (index < 0) index = -index - 1;
+        return index == points.length ? 0 : index;
+    }
+
+    public static InetSocketAddress parseAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Expected host:port, got " + hostAndPort);
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -1,85 +1,677 @@
 package p2p.service;
 
+import p2p.utils.Metrics;
 import p2p.utils.UploadUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.BindException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+/**
+ * Keeps the offered shares and serves them to peers from a single selector thread.
+ *
+ * Peers connect to the transfer port and send header lines ended by an empty line:
+ * <pre>
+ * code: &lt;share code&gt;
+ * file: &lt;index&gt;
+ * offset: &lt;first byte&gt;     (optional)
+ * length: &lt;byte count&gt;     (optional, to the end of the file when absent)
+ * accept-encoding: gzip     (optional, send the stored gzip copy if there is one)
+ * </pre>
+ * The reply uses the same format: filename, size, modified, sha256, crc32c, crc32, encoding,
+ * max-downloads, expires, offset and length lines, an empty line and then exactly length bytes of the file,
+ * or a single "error: ..." line. The checksums are those of the whole stored file, so a client
+ * receiving all of it can verify it. Every request that gets file bytes counts as a download of a
+ * limited share; a request with length 0 only returns the metadata.
+ * In a {@link Cluster} a node can also be asked to copy a share from another node:
+ * <pre>
+ * replicate: &lt;share code&gt;
+ * files: &lt;file count&gt;
+ * source: &lt;host:port of the node that has it&gt;
+ * </pre>
+ * which is answered with "status: accepted" before the files are pulled in the background.
+ * Only other cluster nodes may ask, and the copy takes its expiry from the source's metadata.
+ * All connections are multiplexed on one thread, so the number of outstanding shares
+ * costs neither threads nor ports. With a {@link ShareJournal} the shares and their download
+ * counts are recorded as they change and restored on the next start.
+ */
 public class FileSharer {
 
-    private final ConcurrentHashMap<Integer, String> availableFiles;
+    private static final int MAX_REQUEST_SIZE = 1024;
+    private static final long COMPACTION_CHECK_SECONDS = 60;
 
-    public FileSharer(){
-        availableFiles = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Share> availableFiles;
+    private final PriorityBlockingQueue<Expiry> expiries = new PriorityBlockingQueue<>();
+    private final BlobStore blobStore;
+    private final ShareJournal journal;
+    private final Cluster cluster;
+    private final int port;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private ScheduledExecutorService compactor;
+
+    private final Metrics.Counter transfers;
+    private final Metrics.Counter rejections;
+    private final Metrics.Counter errors;
+    private final Metrics.Counter bytesSent;
+    private final Metrics.Histogram transferDuration;
+    private final AtomicLong activeTransfers = new AtomicLong();
+
+    public FileSharer(int port, BlobStore blobStore){
+        this(port, blobStore, null);
     }
 
-    public int offerFile(String filePath){
-        int port;
-        do{
-            port = UploadUtils.generateCode();
-        }while (availableFiles.containsKey(port));
-        availableFiles.put(port,filePath);
-        return port;
+    public FileSharer(int port, BlobStore blobStore, ShareJournal journal){
+        this(port, blobStore, journal, new Metrics());
     }
 
-    public void startFileServer(int port){
-        String filepath = availableFiles.get(port);
-        if(filepath == null) {
-            System.out.println("No file is associated with port: "+ port);
+    public FileSharer(int port, BlobStore blobStore, ShareJournal journal, Metrics metrics){
+        this(port, blobStore, journal, metrics, null);
+    }
+
+    /**
+     * @param journal where shares are persisted, or null to keep them in memory only
+     * @param metrics registry the peer transfer metrics are added to
+     * @param cluster the nodes this one shares codes with, or null to run alone
+     */
+    public FileSharer(int port, BlobStore blobStore, ShareJournal journal, Metrics metrics, Cluster cluster){
+        this.availableFiles = new ConcurrentHashMap<>();
+        this.blobStore = blobStore;
+        this.journal = journal;
+        this.cluster = cluster;
+        this.port = port;
+
+        transfers = metrics.counter("p2p_peer_transfers_total", "Peer transfers sent to completion.");
+        rejections = metrics.counter("p2p_peer_rejections_total", "Peer requests answered with an error line.");
+        errors = metrics.counter("p2p_peer_errors_total", "Peer connections dropped by an I/O error.");
+        bytesSent = metrics.counter("p2p_peer_sent_bytes_total", "File bytes sent to peers.");
+        transferDuration = metrics.histogram("p2p_peer_transfer_duration_seconds", "Time from a peer request to its last byte.", "");
+        metrics.gauge("p2p_peer_active_transfers", "Peer transfers currently holding a file open.", activeTransfers::get);
+        metrics.gauge("p2p_active_shares", "Shares that can currently be downloaded.", availableFiles::size);
+
+        if (journal != null) restore();
+    }
+
+    private void restore() {
+        long started = System.nanoTime();
+        Map<String, Share> shares = journal.replay(blobStore::release);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Share> entry : shares.entrySet()) {
+            Share share = entry.getValue();
+            share.files.forEach(blobStore::restore);
+            availableFiles.put(entry.getKey(), share);
+            if (share.isExpired(now) || share.isExhausted()) {
+                expire(entry.getKey(), share);
+            } else {
+                scheduleExpiry(entry.getKey(), share);
+            }
+        }
+        System.out.println("Restored " + availableFiles.size() + " shares in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : port;
+    }
+
+    public String offerFile(String filePath){
+        File file = new File(filePath);
+        return offerFiles(List.of(new SharedFile(file.getName(), filePath, file.length())));
+    }
+
+    public String offerFiles(List<SharedFile> files){
+        return offerFiles(files, 0, 0);
+    }
+
+    /**
+     * @param maxDownloads downloads allowed per file, 0 for unlimited
+     * @param ttlMillis    lifetime of the share, 0 for no expiry
+     */
+    public String offerFiles(List<SharedFile> files, int maxDownloads, long ttlMillis){
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        Share share = new Share(files, maxDownloads, expiresAt, blobStore::release);
+        String code = UploadUtils.generateCode();
+        // In a cluster only codes that hash to this node are drawn, so any node can find the share.
+        // Claims the code atomically; a clash in 2^64 codes just draws another
+        while ((cluster != null && !cluster.owns(code)) || availableFiles.putIfAbsent(code, share) != null) {
+            code = UploadUtils.generateCode();
+        }
+        String offered = code;
+        record(journal -> journal.recordOffer(offered, share));
+        scheduleExpiry(offered, share);
+        // Replicas would each count downloads on their own, so limited shares stay on one node
+        if (cluster != null && maxDownloads == 0) replicate(offered, share);
+        return code;
+    }
+
+    private void replicate(String code, Share share) {
+        for (InetSocketAddress node : cluster.replicasOf(code)) {
+            Thread.ofVirtual().name("replicate-" + code).start(() -> {
+                try (PeerConnection reply = PeerConnection.replicate(node, code, share.files.size(), cluster.selfName)) {
+                    if (reply.isError()) System.err.println("Node " + node + " refused share " + code + ": " + reply.header("error"));
+                } catch (IOException e) {
+                    System.err.println("Error replicating share " + code + " to " + node + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies a share from the node that owns it and offers it under the same code. Its expiry
+     * comes from the source, and shares with a download limit aren't copied, as a replica would
+     * count its downloads apart from the original.
+     */
+    private void pullReplica(String code, int fileCount, InetSocketAddress source) {
+        List<SharedFile> files = new ArrayList<>();
+        long expiresAt;
+        try {
+            try (PeerConnection metadata = PeerConnection.open(source, code, 0, 0, 0)) {
+                if (metadata.isError()) throw new IOException(metadata.header("error"));
+                if (metadata.header("max-downloads") != null) throw new IOException("share has a download limit");
+                expiresAt = metadata.longHeader("expires", 0);
+            }
+            for (int i = 0; i < fileCount; i++) {
+                files.add(pullFile(source, code, i));
+            }
+        } catch (IOException e) {
+            System.err.println("Error copying share " + code + " from " + source + ": " + e.getMessage());
+            files.forEach(blobStore::release);
+            return;
+        }
+        Share share = new Share(files, 0, expiresAt, blobStore::release);
+        if (availableFiles.putIfAbsent(code, share) != null) {
+            files.forEach(blobStore::release);
             return;
         }
-        try(ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Serving file "+ new File(filepath).getName() + " on port "+ port);
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Client connection: " + clientSocket.getInetAddress());
-            new Thread(new FileSenderHandler(clientSocket,filepath)).start();
-        }catch(BindException ex){
-            System.err.println("Port "+port+" is already in use");
+        record(journal -> journal.recordOffer(code, share));
+        scheduleExpiry(code, share);
+        System.out.println("Replicated share " + code + " from " + source);
+    }
+
+    private SharedFile pullFile(InetSocketAddress source, String code, int index) throws IOException {
+        String fileName;
+        String hash;
+        // A zero-length request only returns the metadata and doesn't count as a download
+        try (PeerConnection metadata = PeerConnection.open(source, code, index, 0, 0)) {
+            if (metadata.isError()) throw new IOException(metadata.header("error"));
+            fileName = UploadUtils.sanitizeFileName(metadata.header("filename"));
+            hash = metadata.header("sha256");
         }
-        catch (IOException ex){
-            System.err.println("Error handling file server on port:" + port);
+        // Content this node already stores isn't sent again
+        if (hash != null) {
+            SharedFile existing = blobStore.acquire(hash, fileName);
+            if (existing != null) return existing;
         }
+        try (PeerConnection connection = PeerConnection.open(source, code, index, 0, -1)) {
+            if (connection.isError()) throw new IOException(connection.header("error"));
+            BlobStore.Upload upload = blobStore.begin();
+            try {
+                connection.transferTo(upload);
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+            SharedFile stored = upload.commit(fileName);
+            if (hash != null && !hash.equals(stored.hash)) {
+                blobStore.release(stored);
+                throw new IOException("content of " + fileName + " doesn't match its sha256");
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * Returns a file that can currently be downloaded, without counting a download.
+     */
+    public SharedFile find(String code, int index) {
+        Share share = availableFiles.get(code);
+        if (share == null) return null;
+        if (share.isExpired(System.currentTimeMillis())) {
+            expire(code, share);
+            return null;
+        }
+        return share.file(index);
+    }
+
+    /**
+     * Whether the share has a download limit, which the peer reply names as max-downloads.
+     */
+    public boolean isLimited(String code) {
+        Share share = availableFiles.get(code);
+        return share != null && share.maxDownloads > 0;
+    }
+
+    /**
+     * Counts a download that is served without a peer transfer, under the same expiry and
+     * download limits. Returns false when the share has no download left to give.
+     */
+    public boolean claimDownload(String code, int index) {
+        Share share = availableFiles.get(code);
+        if (share == null || share.file(index) == null) return false;
+        if (share.isExpired(System.currentTimeMillis())) {
+            expire(code, share);
+            return false;
+        }
+        share.touch();
+        return countDownload(code, share, index);
+    }
+
+    private void scheduleExpiry(String code, Share share) {
+        if (share.expiresAt > 0) expiries.add(new Expiry(share.expiresAt, code));
+    }
+
+    /**
+     * Removes up to {@code max} shares whose time is up, soonest first, and returns how many.
+     * Expired shares are also dropped when someone asks for them, this catches the ones nobody does.
+     */
+    public int expireDue(long now, int max) {
+        int expired = 0;
+        while (expired < max) {
+            Expiry next = expiries.peek();
+            if (next == null || next.at > now) break;
+            // Only this loop takes from the queue, so the head is still due
+            next = expiries.poll();
+            Share share = availableFiles.get(next.code);
+            // The code may be gone already, or taken by a replica with a different lifetime
+            if (share != null && share.expiresAt == next.at) {
+                expire(next.code, share);
+                expired++;
+            }
+        }
+        return expired;
     }
 
-    private  static class FileSenderHandler implements Runnable {
+    /**
+     * Removes the least recently used shares until {@code enough} says so or {@code max} are gone.
+     * Returns how many were removed.
+     */
+    public int evictLeastRecentlyUsed(BooleanSupplier enough, int max) {
+        List<Map.Entry<String, Share>> shares = new ArrayList<>(availableFiles.entrySet());
+        shares.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess()));
+        int evicted = 0;
+        for (Map.Entry<String, Share> entry : shares) {
+            if (evicted >= max || enough.getAsBoolean()) break;
+            if (availableFiles.get(entry.getKey()) != entry.getValue()) continue;
+            expire(entry.getKey(), entry.getValue());
+            evicted++;
+        }
+        return evicted;
+    }
 
-        private final Socket clientSocket;
-        private final String filePath;
+    private static class Expiry implements Comparable<Expiry> {
+        final long at;
+        final String code;
 
-        public FileSenderHandler(Socket clientSocket, String filePath){
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+        Expiry(long at, String code) {
+            this.at = at;
+            this.code = code;
         }
 
         @Override
-        public void run() {
-            try(FileInputStream fis = new FileInputStream(filePath)){
-                OutputStream oos = clientSocket.getOutputStream();
-                String fileName = new File(filePath).getName();
-                String header = "filename: "+fileName+"\n";
-                oos.write(header.getBytes());
-
-                byte[] buffer = new byte[4096];
-                int byteRead;
-                while ((byteRead = fis.read(buffer)) != -1){
-                    oos.write(buffer, 0, byteRead);
+        public int compareTo(Expiry other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    private boolean countDownload(String code, Share share, int index) {
+        if (!share.tryCountDownload(index)) return false;
+        if (share.maxDownloads > 0) {
+            int downloads = share.downloads(index);
+            record(journal -> journal.recordDownload(code, index, downloads));
+        }
+        if (share.isExhausted()) {
+            // Readers still holding the files keep them until they are done
+            expire(code, share);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the share; its files go away once the transfers still reading them finish.
+     */
+    private void expire(String code, Share share) {
+        if (availableFiles.remove(code, share)) {
+            record(journal -> journal.recordRemove(code));
+            share.retire();
+            System.out.println("Share " + code + " expired");
+        }
+    }
+
+    private void record(JournalWrite write) {
+        if (journal == null) return;
+        try {
+            write.run(journal);
+        } catch (IOException e) {
+            System.err.println("Error writing share journal: " + e.getMessage());
+        }
+    }
+
+    private void compactJournal() {
+        try {
+            if (journal.needsCompaction()) {
+                long before = journal.size();
+                journal.compact(availableFiles);
+                System.out.println("Compacted share journal from " + before + " to " + journal.size() + " bytes");
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting share journal: " + e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface JournalWrite {
+        void run(ShareJournal journal) throws IOException;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(this::runSelector, "file-sharer");
+        selectorThread.start();
+        if (journal != null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "share-journal");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactJournal,
+                    COMPACTION_CHECK_SECONDS, COMPACTION_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+        System.out.println("File sharer listening on port " + getPort());
+    }
+
+    public void stop() {
+        if (compactor != null) compactor.shutdown();
+        try {
+            if (selector != null) selector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error stopping file sharer: " + e.getMessage());
+        }
+    }
+
+    private void runSelector() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    FileSenderHandler handler = (FileSenderHandler) key.attachment();
+                    try {
+                        if (key.isReadable()) handler.onReadable(key);
+                        if (key.isValid() && key.isWritable()) handler.onWritable(key);
+                    } catch (IOException e) {
+                        System.err.println("Error sending file to client " + e.getMessage());
+                        errors.inc();
+                        handler.close(key);
+                    }
                 }
-                oos.flush();
-                System.out.println("File "+fileName+" send to "+clientSocket.getInetAddress());
-            }catch (Exception e){
-                System.err.println("Error sending file to client "+ e.getMessage());
-            }finally {
-                try {
-                    clientSocket.close();
-                }catch (Exception e){
-                    System.err.println("Error closing socket: " +e.getMessage());
+            }
+        } catch (ClosedSelectorException e) {
+            // stop() closed the selector
+        } catch (IOException e) {
+            System.err.println("Error in file sharer selector: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = serverChannel.accept();
+        if (client == null) return;
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new FileSenderHandler(client));
+    }
+
+    /**
+     * Per-connection state: reads the request header, then streams the file as the socket drains.
+     */
+    private class FileSenderHandler {
+
+        private final SocketChannel clientChannel;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer response;
+        private Share share;
+        private FileChannel fileChannel;
+        private String fileName;
+        private long position;
+        private long end;
+        private long started;
+
+        FileSenderHandler(SocketChannel clientChannel){
+            this.clientChannel = clientChannel;
+        }
+
+        void onReadable(SelectionKey key) throws IOException {
+            if (clientChannel.read(request) == -1 && !requestComplete()) {
+                close(key);
+                return;
+            }
+            if (!requestComplete()) {
+                if (!request.hasRemaining()) {
+                    reject(key, "request too large");
+                }
+                return;
+            }
+
+            String header = new String(request.array(), 0, request.position(), StandardCharsets.UTF_8);
+            String code = null;
+            int index = 0;
+            long offset = 0;
+            long length = -1;
+            boolean acceptGzip = false;
+            String replicate = null;
+            int fileCount = 0;
+            String source = null;
+            try {
+                for (String line : header.split("\n")) {
+                    line = line.trim();
+                    if (line.startsWith("replicate: ")) replicate = line.substring("replicate: ".length()).trim();
+                    if (line.startsWith("files: ")) fileCount = Integer.parseInt(line.substring("files: ".length()).trim());
+                    if (line.startsWith("source: ")) source = line.substring("source: ".length()).trim();
+                    if (line.startsWith("code: ")) code = line.substring("code: ".length()).trim();
+                    if (line.startsWith("file: ")) index = Integer.parseInt(line.substring("file: ".length()).trim());
+                    if (line.startsWith("offset: ")) offset = Long.parseLong(line.substring("offset: ".length()).trim());
+                    if (line.startsWith("length: ")) length = Long.parseLong(line.substring("length: ".length()).trim());
+                    if (line.startsWith("accept-encoding: ")) acceptGzip = line.substring("accept-encoding: ".length()).trim().equals("gzip");
                 }
+            } catch (NumberFormatException e) {
+                reject(key, "malformed request");
+                return;
+            }
+
+            if (replicate != null) {
+                acceptReplica(key, replicate, fileCount, source);
+                return;
+            }
+
+            Share found = code == null ? null : availableFiles.get(code);
+            if (found != null && found.isExpired(System.currentTimeMillis())) {
+                expire(code, found);
+                found = null;
+            }
+            SharedFile sharedFile = found == null ? null : found.file(index);
+            if (sharedFile == null) {
+                reject(key, "not found");
+                return;
+            }
+
+            // The gzip copy is sent as is, so compressed downloads cost no CPU here either
+            boolean compressed = false;
+            if (acceptGzip) {
+                fileChannel = found.openCompressed(index);
+                compressed = fileChannel != null;
+            }
+            if (fileChannel == null) fileChannel = found.open(index);
+            if (fileChannel == null) {
+                reject(key, "not found");
+                return;
+            }
+            share = found;
+            activeTransfers.incrementAndGet();
+
+            fileName = sharedFile.fileName;
+            long fileSize = fileChannel.size();
+            if (offset < 0 || offset > fileSize) {
+                release();
+                reject(key, "offset out of range");
+                return;
+            }
+            // Positional transfer of just the requested window
+            started = System.nanoTime();
+            position = offset;
+            end = length < 0 ? fileSize : Math.min(fileSize, offset + length);
+
+            // Every transfer that sends file bytes is a download, a range or a resume included,
+            // otherwise ranges would get around the limit. Only metadata requests are free.
+            if (end > offset && !countDownload(code, found, index)) {
+                release();
+                reject(key, "download limit reached");
+                return;
+            }
+            long modified = Files.getLastModifiedTime(Path.of(sharedFile.path)).toMillis();
+            StringBuilder reply = new StringBuilder()
+                    .append("filename: ").append(fileName).append('\n')
+                    .append("size: ").append(fileSize).append('\n')
+                    .append("modified: ").append(modified).append('\n');
+            if (sharedFile.hash != null) reply.append("sha256: ").append(sharedFile.hash).append('\n');
+            if (sharedFile.crc32c >= 0) reply.append("crc32c: ").append(String.format("%08x", sharedFile.crc32c)).append('\n');
+            if (sharedFile.crc32 >= 0) reply.append("crc32: ").append(String.format("%08x", sharedFile.crc32)).append('\n');
+            if (compressed) reply.append("encoding: gzip\n");
+            if (found.maxDownloads > 0) reply.append("max-downloads: ").append(found.maxDownloads).append('\n');
+            if (found.expiresAt > 0) reply.append("expires: ").append(found.expiresAt).append('\n');
+            reply.append("offset: ").append(offset).append('\n')
+                    .append("length: ").append(end - offset).append("\n\n");
+            response = ByteBuffer.wrap(reply.toString().getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void onWritable(SelectionKey key) throws IOException {
+            if (response.hasRemaining()) {
+                clientChannel.write(response);
+                if (response.hasRemaining()) return;
+            }
+            if (fileChannel == null) {
+                close(key);
+                return;
+            }
+
+            // sendfile: the kernel moves page-cache pages straight to the socket
+            while (position < end) {
+                long sent = fileChannel.transferTo(position, end - position, clientChannel);
+                // Socket buffer is full, wait for the next OP_WRITE
+                if (sent == 0) return;
+                position += sent;
+                bytesSent.add(sent);
+            }
+            transfers.inc();
+            transferDuration.record(System.nanoTime() - started);
+            System.out.println("File " + fileName + " send to " + clientChannel.getRemoteAddress());
+            close(key);
+        }
+
+        private void acceptReplica(SelectionKey key, String code, int fileCount, String source) {
+            InetSocketAddress sourceAddress;
+            try {
+                sourceAddress = source == null ? null : Cluster.parseAddress(source);
+            } catch (IllegalArgumentException e) {
+                sourceAddress = null;
+            }
+            // Only other nodes may ask, and only to copy from a node: anyone reaching this port could
+            // otherwise have shares copied, or have this node fetch from anywhere it is told
+            if (cluster == null || !cluster.isMemberHost(remoteAddress()) || sourceAddress == null
+                    || !cluster.isMember(sourceAddress) || !UploadUtils.isValidCode(code) || fileCount <= 0) {
+                reject(key, "replication refused");
+                return;
+            }
+            if (!availableFiles.containsKey(code)) {
+                InetSocketAddress from = sourceAddress;
+                Thread.ofVirtual().name("replica-" + code).start(() -> pullReplica(code, fileCount, from));
+            }
+            response = ByteBuffer.wrap("status: accepted\n\n".getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private InetAddress remoteAddress() {
+            try {
+                return ((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private boolean requestComplete() {
+            // The header ends at the first empty line
+            int lineLength = 0;
+            for (int i = 0; i < request.position(); i++) {
+                byte b = request.get(i);
+                if (b == '\n') {
+                    if (lineLength == 0) return true;
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+            }
+            return false;
+        }
+
+        private void reject(SelectionKey key, String reason) {
+            rejections.inc();
+            response = ByteBuffer.wrap(("error: " + reason + "\n\n").getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void release() {
+            if (share != null) {
+                activeTransfers.decrementAndGet();
+                share.release();
+                share = null;
+                fileChannel = null;
+            }
+        }
+
+        void close(SelectionKey key) {
+            key.cancel();
+            release();
+            try {
+                clientChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
             }
         }
     }
@@ -0,0 +1,161 @@
+package p2p.service;
+
+import p2p.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the content of frequently downloaded files in direct buffers, outside the heap.
+ *
+ * Entries are keyed by content hash, so every share of the same bytes uses one entry and an
+ * entry can never go stale. Eviction is least recently used, weighed by size against a byte
+ * budget. A file is only loaded on its second miss within the recent history, which keeps a
+ * stream of one-off downloads from flushing out the files that are actually hot.
+ */
+public class HotFileCache {
+
+    private static final int HISTORY_SIZE = 16 * 1024;
+
+    private final long capacity;
+    private final long maxFileSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> history = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > HISTORY_SIZE;
+        }
+    };
+    private final Set<String> loading = new HashSet<>();
+    private long used;
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter loads;
+    private final Metrics.Counter evictions;
+
+    /**
+     * @param capacity    bytes of file content the cache may hold
+     * @param maxFileSize largest file worth caching
+     */
+    public HotFileCache(long capacity, long maxFileSize, Metrics metrics) {
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+
+        hits = metrics.counter("p2p_cache_hits_total", "Downloads served from the hot file cache.");
+        misses = metrics.counter("p2p_cache_misses_total", "Downloads of cacheable files that missed the hot file cache.");
+        loads = metrics.counter("p2p_cache_loads_total", "Files loaded into the hot file cache.");
+        evictions = metrics.counter("p2p_cache_evictions_total", "Files evicted from the hot file cache.");
+    }
+
+    /**
+     * Returns the cached content of the file, loading it when it has turned hot,
+     * or null when the download should go through the file sharer.
+     */
+    public Entry get(SharedFile file) {
+        if (file.hash == null || file.size > maxFileSize) return null;
+        synchronized (this) {
+            Entry entry = entries.get(file.hash);
+            if (entry != null) {
+                hits.inc();
+                return entry;
+            }
+            misses.inc();
+            // First miss only marks the file, a second one while it is remembered loads it
+            if (history.remove(file.hash) == null) {
+                history.put(file.hash, Boolean.TRUE);
+                return null;
+            }
+            if (!loading.add(file.hash)) return null;
+        }
+
+        Entry loaded = null;
+        try {
+            loaded = load(file);
+        } catch (IOException | OutOfMemoryError e) {
+            // Out of direct memory only means this file isn't cached, the download goes on without it
+            System.err.println("Error caching " + file.path + ": " + e);
+        } finally {
+            // Whatever the load threw, the file must not stay marked as loading or it is never cached
+            synchronized (this) {
+                loading.remove(file.hash);
+                if (loaded != null) {
+                    entries.put(file.hash, loaded);
+                    used += loaded.size();
+                    loads.inc();
+                    evict();
+                }
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized long used() {
+        return used;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (used > capacity && eldest.hasNext()) {
+            used -= eldest.next().size();
+            eldest.remove();
+            evictions.inc();
+        }
+    }
+
+    private static Entry load(SharedFile file) throws IOException {
+        Path path = Path.of(file.path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The budget was checked against the recorded size, a file that differs is not cached
+            long size = channel.size();
+            if (size != file.size) return null;
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()) {
+                if (channel.read(content, content.position()) == -1) return null;
+            }
+            content.flip();
+            // Every later hit is served from this copy, so it is checked once here
+            if (file.crc32c >= 0) {
+                CRC32C crc = new CRC32C();
+                crc.update(content.duplicate());
+                if (crc.getValue() != file.crc32c) throw new IOException("content doesn't match its crc32c");
+            }
+            return new Entry(content.asReadOnlyBuffer(), Files.getLastModifiedTime(path).toMillis());
+        }
+    }
+
+    public static class Entry {
+        private final ByteBuffer content;
+        public final long modified;
+
+        Entry(ByteBuffer content, long modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+
+        /**
+         * A view of the content with its own position, for one reader.
+         */
+        public ByteBuffer content() {
+            return content.duplicate();
+        }
+
+        public long size() {
+            return content.capacity();
+        }
+    }
+}
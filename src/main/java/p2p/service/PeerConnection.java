@@ -0,0 +1,174 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Client side of the {@link FileSharer} transfer protocol: one request, one reply.
+ */
+public class PeerConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+    private final Map<String, String> headers;
+
+    private PeerConnection(SocketChannel channel, ByteBuffer buffer, Map<String, String> headers) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.headers = headers;
+    }
+
+    /**
+     * Requests {@code length} bytes of a shared file starting at {@code offset};
+     * a negative length asks for everything up to the end of the file.
+     */
+    public static PeerConnection open(InetSocketAddress address, String code, int index, long offset, long length) throws IOException {
+        return open(address, code, index, offset, length, false);
+    }
+
+    /**
+     * @param acceptGzip take the stored gzip copy when the file has one; {@link #header(String)}
+     *                   "encoding" then says the body is gzip
+     */
+    public static PeerConnection open(InetSocketAddress address, String code, int index, long offset, long length, boolean acceptGzip) throws IOException {
+        StringBuilder request = new StringBuilder()
+                .append("code: ").append(code).append('\n')
+                .append("file: ").append(index).append('\n');
+        if (offset > 0) request.append("offset: ").append(offset).append('\n');
+        if (length >= 0) request.append("length: ").append(length).append('\n');
+        if (acceptGzip) request.append("accept-encoding: gzip\n");
+        PeerConnection connection = send(address, request);
+        // Every file reply has a size, a reply without one can't be sent on as a file
+        if (!connection.isError() && connection.header("size") == null) {
+            connection.close();
+            throw new IOException("Peer reply has no size");
+        }
+        return connection;
+    }
+
+    /**
+     * Asks a cluster node to copy a share from {@code source}. The node replies right away
+     * and pulls the files in the background.
+     */
+    public static PeerConnection replicate(InetSocketAddress address, String code, int files, String source) throws IOException {
+        StringBuilder request = new StringBuilder()
+                .append("replicate: ").append(code).append('\n')
+                .append("files: ").append(files).append('\n')
+                .append("source: ").append(source).append('\n');
+        return send(address, request);
+    }
+
+    private static PeerConnection send(InetSocketAddress address, StringBuilder request) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            request.append('\n');
+            ByteBuffer out = ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.UTF_8));
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+
+            // Read the header block, whatever follows it in the buffer is file content
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            return new PeerConnection(channel, buffer, readHeaders(channel, buffer));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isError() {
+        return headers.containsKey("error");
+    }
+
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    public long longHeader(String name, long defaultValue) {
+        String value = headers.get(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * Copies the reply body to the target. Fails if the peer closes before the announced length.
+     *
+     * A reply carrying the whole file is checked against its CRC32C on the way through, and the
+     * last bytes are only written once it matches, so a corrupt file never reaches the target whole.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long length = longHeader("length", -1);
+        CRC32C crc = isWholeFile() ? new CRC32C() : null;
+        long sent = 0;
+        while (true) {
+            if (crc != null && buffer.hasRemaining()) {
+                crc.update(buffer.duplicate());
+                if (sent + buffer.remaining() >= length && crc.getValue() != Long.parseLong(header("crc32c"), 16)) {
+                    throw new IOException("Content of " + header("filename") + " doesn't match its crc32c");
+                }
+            }
+            while (buffer.hasRemaining()) {
+                sent += target.write(buffer);
+            }
+            if (length >= 0 && sent >= length) break;
+            buffer.clear();
+            if (channel.read(buffer) == -1) break;
+            buffer.flip();
+        }
+        if (length >= 0 && sent != length) {
+            throw new IOException("Peer stream ended after " + sent + " of " + length + " bytes");
+        }
+        return sent;
+    }
+
+    /**
+     * Whether the body is the complete file as stored, which its checksums can be verified against.
+     */
+    private boolean isWholeFile() {
+        return header("crc32c") != null && header("encoding") == null
+                && longHeader("offset", 0) == 0 && longHeader("length", -1) == longHeader("size", -2);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static Map<String, String> readHeaders(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        int lineStart = 0;
+        int scanned = 0;
+        while (true) {
+            for (; scanned < buffer.position(); scanned++) {
+                if (buffer.get(scanned) != '\n') continue;
+                String line = new String(buffer.array(), lineStart, scanned - lineStart, StandardCharsets.UTF_8).trim();
+                lineStart = scanned + 1;
+                if (line.isEmpty()) {
+                    buffer.flip();
+                    buffer.position(lineStart);
+                    return headers;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Peer header too large");
+            }
+            // The sharer closes without a reply when it fails, that must not read as an empty reply
+            if (channel.read(buffer) == -1) {
+                throw new IOException("Peer closed before replying");
+            }
+        }
+    }
+}
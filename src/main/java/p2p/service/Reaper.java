@@ -0,0 +1,135 @@
+package p2p.service;
+
+import p2p.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reclaims storage in the background: expired shares, abandoned chunked uploads, orphaned
+ * files and, with a quota, the least recently used shares.
+ *
+ * Every pass does a bounded amount of work on its own thread, so a backlog is worked off over
+ * several passes instead of stalling anything. Request threads never wait for it.
+ */
+public class Reaper {
+
+    private static final int MAX_PER_PASS = 1000;
+    // Orphans are rare, the directories are only listed every this many passes
+    private static final int SWEEP_EVERY = 30;
+
+    private final FileSharer fileSharer;
+    private final BlobStore blobStore;
+    private final Map<String, ChunkedUpload> chunkedUploads;
+    private final long quotaBytes;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final long idleMillis;
+    private ScheduledExecutorService scheduler;
+    private long passes;
+
+    private final Metrics.Counter expired;
+    private final Metrics.Counter abandoned;
+    private final Metrics.Counter orphans;
+    private final Metrics.Counter evicted;
+
+    /**
+     * @param quotaBytes    blob bytes to stay under, 0 for no quota
+     * @param highWatermark share of the quota above which shares are evicted
+     * @param lowWatermark  share of the quota eviction brings usage back down to
+     * @param idleMillis    time after which a chunked upload or an incoming file nobody writes to is abandoned
+     */
+    public Reaper(FileSharer fileSharer, BlobStore blobStore, Map<String, ChunkedUpload> chunkedUploads,
+                  long quotaBytes, double highWatermark, double lowWatermark, long idleMillis, Metrics metrics) {
+        this.fileSharer = fileSharer;
+        this.blobStore = blobStore;
+        this.chunkedUploads = chunkedUploads;
+        this.quotaBytes = quotaBytes;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.idleMillis = idleMillis;
+
+        expired = metrics.counter("p2p_reaper_expired_shares_total", "Shares removed by the reaper after their TTL.");
+        abandoned = metrics.counter("p2p_reaper_abandoned_uploads_total", "Idle chunked uploads discarded by the reaper.");
+        orphans = metrics.counter("p2p_reaper_orphaned_files_total", "Incoming files and unreferenced blobs deleted by the reaper.");
+        evicted = metrics.counter("p2p_reaper_evicted_shares_total", "Shares removed to get back under the disk quota.");
+    }
+
+    public void start(long intervalSeconds) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::runPass, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) scheduler.shutdown();
+    }
+
+    /**
+     * One pass; public so it can also be driven by hand.
+     */
+    public void runPass() {
+        try {
+            long now = System.currentTimeMillis();
+            expired.add(fileSharer.expireDue(now, MAX_PER_PASS));
+            abandoned.add(discardAbandonedUploads(now));
+            if (passes++ % SWEEP_EVERY == 0) {
+                Set<Path> live = new HashSet<>();
+                chunkedUploads.values().forEach(upload -> live.add(upload.path));
+                orphans.add(blobStore.sweepIncoming(idleMillis, live, MAX_PER_PASS));
+                orphans.add(blobStore.sweepBlobs(idleMillis, MAX_PER_PASS));
+            }
+            // Chunked uploads under way are preallocated, their space counts as used
+            long reserved = reservedBytes();
+            if (quotaBytes > 0 && blobStore.storedBytes() + reserved > quotaBytes * highWatermark) {
+                long before = blobStore.storedBytes();
+                int count = fileSharer.evictLeastRecentlyUsed(
+                        () -> blobStore.storedBytes() + reserved <= quotaBytes * lowWatermark, MAX_PER_PASS);
+                evicted.add(count);
+                System.out.println("Evicted " + count + " shares over the disk quota, stored bytes "
+                        + before + " -> " + blobStore.storedBytes());
+            }
+        } catch (IOException | RuntimeException e) {
+            // A failed pass is retried with the next one, the scheduler must not die with it
+            System.err.println("Error reaping storage: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Whether a chunked upload of this size fits the quota next to the ones already under way.
+     * Stored shares aren't held against it, they are evicted to make room.
+     */
+    public boolean fitsQuota(long bytes) {
+        return quotaBytes <= 0 || reservedBytes() + bytes <= quotaBytes;
+    }
+
+    private long reservedBytes() {
+        long reserved = 0;
+        for (ChunkedUpload upload : chunkedUploads.values()) {
+            reserved += upload.size;
+        }
+        return reserved;
+    }
+
+    private int discardAbandonedUploads(long now) {
+        int count = 0;
+        for (ChunkedUpload upload : chunkedUploads.values()) {
+            if (count >= MAX_PER_PASS) break;
+            if (now - upload.lastActivity() > idleMillis && chunkedUploads.remove(upload.id, upload)) {
+                upload.abort();
+                System.out.println("Chunked upload " + upload.id + " abandoned");
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,173 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * A batch of files offered under a single share code.
+ *
+ * Every file is opened once and the channel is shared by all concurrent readers, which
+ * transfer from it with positional reads. A share that has expired or used up its downloads
+ * is retired: the channels are closed and the files released once the last reader is done.
+ */
+public class Share {
+    public final List<SharedFile> files;
+    public final int maxDownloads;
+    public final long expiresAt;
+
+    private final AtomicIntegerArray downloads;
+    private final FileChannel[] channels;
+    private final FileChannel[] compressedChannels;
+    private final boolean[] uncompressed;
+    private final Consumer<SharedFile> releaseFile;
+    private int readers;
+    private boolean retired;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    public Share(List<SharedFile> files) {
+        this(files, 0, 0);
+    }
+
+    /**
+     * @param maxDownloads downloads allowed per file, 0 for unlimited
+     * @param expiresAt    epoch millis after which the share is gone, 0 for never
+     */
+    public Share(List<SharedFile> files, int maxDownloads, long expiresAt) {
+        this(files, maxDownloads, expiresAt, Share::deleteFile);
+    }
+
+    /**
+     * @param releaseFile called for every file once the share is retired and no longer read
+     */
+    public Share(List<SharedFile> files, int maxDownloads, long expiresAt, Consumer<SharedFile> releaseFile) {
+        this.files = List.copyOf(files);
+        this.releaseFile = releaseFile;
+        this.maxDownloads = maxDownloads;
+        this.expiresAt = expiresAt;
+        this.downloads = new AtomicIntegerArray(this.files.size());
+        this.channels = new FileChannel[this.files.size()];
+        this.compressedChannels = new FileChannel[this.files.size()];
+        this.uncompressed = new boolean[this.files.size()];
+    }
+
+    public SharedFile file(int index) {
+        if (index < 0 || index >= files.size()) return null;
+        return files.get(index);
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt > 0 && now >= expiresAt;
+    }
+
+    /**
+     * Counts one download of the file, or returns false when its limit is already reached.
+     */
+    public boolean tryCountDownload(int index) {
+        if (maxDownloads <= 0) return true;
+        while (true) {
+            int count = downloads.get(index);
+            if (count >= maxDownloads) return false;
+            if (downloads.compareAndSet(index, count, count + 1)) return true;
+        }
+    }
+
+    public int downloads(int index) {
+        return downloads.get(index);
+    }
+
+    /**
+     * Sets a download count recorded by an earlier run.
+     */
+    void restoreDownloads(int index, int count) {
+        if (index >= 0 && index < downloads.length()) downloads.set(index, count);
+    }
+
+    /**
+     * Epoch millis of the last time a file of the share was opened or downloaded.
+     */
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    public void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    public boolean isExhausted() {
+        if (maxDownloads <= 0) return false;
+        for (int i = 0; i < downloads.length(); i++) {
+            if (downloads.get(i) < maxDownloads) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the shared channel of a file and registers the caller as a reader,
+     * or null once the share is retired. Every successful call needs a {@link #release()}.
+     */
+    public synchronized FileChannel open(int index) throws IOException {
+        if (retired) return null;
+        touch();
+        if (channels[index] == null) {
+            channels[index] = FileChannel.open(Path.of(files.get(index).path), StandardOpenOption.READ);
+        }
+        readers++;
+        return channels[index];
+    }
+
+    /**
+     * Like {@link #open(int)} for the gzip copy stored next to the file, or null when there is none.
+     */
+    public synchronized FileChannel openCompressed(int index) throws IOException {
+        if (retired || uncompressed[index]) return null;
+        touch();
+        if (compressedChannels[index] == null) {
+            try {
+                compressedChannels[index] = FileChannel.open(Path.of(BlobStore.compressedPath(files.get(index).path)), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                uncompressed[index] = true;
+                return null;
+            }
+        }
+        readers++;
+        return compressedChannels[index];
+    }
+
+    public synchronized void release() {
+        readers--;
+        if (retired && readers == 0) cleanUp();
+    }
+
+    public synchronized void retire() {
+        if (retired) return;
+        retired = true;
+        if (readers == 0) cleanUp();
+    }
+
+    private void cleanUp() {
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                if (channels[i] != null) channels[i].close();
+                if (compressedChannels[i] != null) compressedChannels[i].close();
+            } catch (IOException e) {
+                System.err.println("Error closing shared file " + files.get(i).path + ": " + e.getMessage());
+            }
+            releaseFile.accept(files.get(i));
+        }
+    }
+
+    private static void deleteFile(SharedFile file) {
+        try {
+            Files.deleteIfExists(Path.of(file.path));
+        } catch (IOException e) {
+            System.err.println("Error removing shared file " + file.path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped log of share changes, replayed on startup to rebuild the index.
+ *
+ * Each record is framed as [payload length][type][payload][crc32c of type and payload].
+ * Every record is idempotent (offers carry the whole share, downloads the absolute count),
+ * so replay simply applies them in order and stops at the first torn or zeroed record.
+ * Compaction rewrites the live shares into a fresh journal once the log has doubled since
+ * the last rewrite.
+ */
+public class ShareJournal implements Closeable {
+
+    private static final byte OFFER = 1;
+    private static final byte DOWNLOAD = 2;
+    private static final byte REMOVE = 3;
+    // Offers carry a version after the code; a new per-file field bumps it rather than adding a type.
+    // Version 1 has each file's CRC32C and CRC-32.
+    private static final byte OFFER_VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 8L * 1024 * 1024;
+    private static final int FRAME_OVERHEAD = 4 + 1 + 4;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private long compactedSize;
+
+    public ShareJournal(Path path) throws IOException {
+        this.path = path;
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping past the end grows the file; the zeroed tail is where appends go
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+    }
+
+    /**
+     * Rebuilds the shares recorded in the journal and positions it for appending.
+     */
+    public synchronized Map<String, Share> replay(Consumer<SharedFile> releaseFile) {
+        Map<String, Share> shares = new HashMap<>();
+        CRC32C crc = new CRC32C();
+        int position = 0;
+        while (position + FRAME_OVERHEAD <= mapped.capacity()) {
+            int length = mapped.getInt(position);
+            if (length <= 0 || position + FRAME_OVERHEAD + length > mapped.capacity()) break;
+
+            ByteBuffer record = mapped.slice(position + 4, 1 + length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != mapped.getInt(position + 5 + length)) break;
+
+            try {
+                apply(record, shares, releaseFile);
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring unreadable share journal record at " + position + ": " + e);
+                break;
+            }
+            position += FRAME_OVERHEAD + length;
+        }
+        mapped.position(position);
+        compactedSize = position;
+        return shares;
+    }
+
+    private void apply(ByteBuffer record, Map<String, Share> shares, Consumer<SharedFile> releaseFile) {
+        byte type = record.get();
+        String code = getString(record);
+        switch (type) {
+            case OFFER -> {
+                byte version = record.get();
+                if (version < 1 || version > OFFER_VERSION) throw new IllegalStateException("unknown offer version " + version);
+                int maxDownloads = record.getInt();
+                long expiresAt = record.getLong();
+                int count = record.getInt();
+                List<SharedFile> files = new ArrayList<>(count);
+                int[] downloads = new int[count];
+                for (int i = 0; i < count; i++) {
+                    String fileName = getString(record);
+                    String filePath = getString(record);
+                    long size = record.getLong();
+                    String hash = getString(record);
+                    long crc32c = record.getLong();
+                    long crc32 = record.getLong();
+                    downloads[i] = record.getInt();
+                    files.add(new SharedFile(fileName, filePath, size, hash.isEmpty() ? null : hash, crc32c, crc32));
+                }
+                Share share = new Share(files, maxDownloads, expiresAt, releaseFile);
+                for (int i = 0; i < count; i++) {
+                    share.restoreDownloads(i, downloads[i]);
+                }
+                shares.put(code, share);
+            }
+            case DOWNLOAD -> {
+                Share share = shares.get(code);
+                int index = record.getInt();
+                int count = record.getInt();
+                if (share != null) share.restoreDownloads(index, count);
+            }
+            case REMOVE -> shares.remove(code);
+            default -> throw new IllegalStateException("unknown record type " + type);
+        }
+    }
+
+    public synchronized void recordOffer(String code, Share share) throws IOException {
+        append(encodeOffer(code, share, this::scratch));
+    }
+
+    public synchronized void recordDownload(String code, int index, int count) throws IOException {
+        byte[] encodedCode = code.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = scratch(1 + 2 + encodedCode.length + 8);
+        record.put(DOWNLOAD);
+        putString(record, encodedCode).putInt(index).putInt(count);
+        append(record.flip());
+    }
+
+    public synchronized void recordRemove(String code) throws IOException {
+        byte[] encodedCode = code.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = scratch(1 + 2 + encodedCode.length);
+        record.put(REMOVE);
+        putString(record, encodedCode);
+        append(record.flip());
+    }
+
+    public synchronized long size() {
+        return mapped.position();
+    }
+
+    public synchronized boolean needsCompaction() {
+        return mapped.position() > Math.max(MIN_COMPACTION_SIZE, compactedSize * 2);
+    }
+
+    /**
+     * Replaces the journal with one offer record per live share.
+     *
+     * Only the start and the swap hold the lock. The live shares are written and forced to a
+     * new file while appends carry on into the old one; the records appended meanwhile are
+     * then copied after the offers, where replay applies them last, as it would have. Calls
+     * must not overlap, FileSharer makes them from its single compaction thread.
+     */
+    public void compact(Map<String, Share> live) throws IOException {
+        int from;
+        synchronized (this) {
+            from = mapped.position();
+        }
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long written = 0;
+            ByteBuffer frame = ByteBuffer.allocate(64 * 1024);
+            for (Map.Entry<String, Share> entry : live.entrySet()) {
+                ByteBuffer record = encodeOffer(entry.getKey(), entry.getValue(), ByteBuffer::allocate);
+                if (frame.remaining() < record.remaining() + FRAME_OVERHEAD - 1) {
+                    written += drain(frame, out);
+                    if (frame.capacity() < record.remaining() + FRAME_OVERHEAD) {
+                        frame = ByteBuffer.allocate(record.remaining() + FRAME_OVERHEAD);
+                    }
+                }
+                frame(record, frame);
+            }
+            written += drain(frame, out);
+
+            // Catches up on the appends made so far, then forces everything outside the lock
+            int caughtUp;
+            ByteBuffer log;
+            synchronized (this) {
+                caughtUp = mapped.position();
+                log = mapped.duplicate();
+            }
+            written += copy(log, from, caughtUp, out);
+            out.force(true);
+
+            // Only what was appended since the catch-up is copied and forced under the lock
+            synchronized (this) {
+                written += copy(mapped.duplicate(), caughtUp, mapped.position(), out);
+                out.force(true);
+                channel.close();
+                Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                open();
+                mapped.position((int) written);
+                compactedSize = written;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mapped.force();
+        channel.close();
+    }
+
+    private static ByteBuffer encodeOffer(String code, Share share, IntFunction<ByteBuffer> allocate) throws IOException {
+        byte[] encodedCode = code.getBytes(StandardCharsets.UTF_8);
+        int size = 1 + 2 + encodedCode.length + 1 + 4 + 8 + 4;
+        List<byte[][]> strings = new ArrayList<>(share.files.size());
+        for (SharedFile file : share.files) {
+            byte[][] encoded = {
+                    file.fileName.getBytes(StandardCharsets.UTF_8),
+                    file.path.getBytes(StandardCharsets.UTF_8),
+                    (file.hash == null ? "" : file.hash).getBytes(StandardCharsets.UTF_8)
+            };
+            strings.add(encoded);
+            size += 3 * 2 + encoded[0].length + encoded[1].length + encoded[2].length + 8 + 8 + 8 + 4;
+        }
+
+        ByteBuffer record = allocate.apply(size);
+        record.put(OFFER);
+        putString(record, encodedCode).put(OFFER_VERSION).putInt(share.maxDownloads).putLong(share.expiresAt).putInt(share.files.size());
+        for (int i = 0; i < share.files.size(); i++) {
+            byte[][] encoded = strings.get(i);
+            putString(record, encoded[0]);
+            putString(record, encoded[1]);
+            record.putLong(share.files.get(i).size);
+            putString(record, encoded[2]);
+            record.putLong(share.files.get(i).crc32c);
+            record.putLong(share.files.get(i).crc32);
+            record.putInt(share.downloads(i));
+        }
+        return record.flip();
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        int needed = record.remaining() + FRAME_OVERHEAD - 1;
+        if (mapped.remaining() < needed + 4) {
+            // Grow the mapping; the zeroed tail still reads as end of journal
+            int position = mapped.position();
+            long capacity = Math.max((long) mapped.capacity() * 2, position + needed + 4);
+            if (capacity > Integer.MAX_VALUE) throw new IOException("Share journal is full");
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            mapped.position(position);
+        }
+        frame(record, mapped);
+    }
+
+    private static void frame(ByteBuffer record, ByteBuffer target) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate());
+        target.putInt(record.remaining() - 1);
+        target.put(record);
+        target.putInt((int) crc.getValue());
+    }
+
+    private static long drain(ByteBuffer frame, FileChannel out) throws IOException {
+        frame.flip();
+        long count = frame.remaining();
+        while (frame.hasRemaining()) {
+            out.write(frame);
+        }
+        frame.clear();
+        return count;
+    }
+
+    private static long copy(ByteBuffer log, int from, int to, FileChannel out) throws IOException {
+        ByteBuffer records = log.limit(to).position(from);
+        while (records.hasRemaining()) {
+            out.write(records);
+        }
+        return to - from;
+    }
+
+    private ByteBuffer scratch(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+        return scratch.clear();
+    }
+
+    private static ByteBuffer putString(ByteBuffer record, byte[] encoded) throws IOException {
+        // A wrapped length would make the record unreadable and end every replay there
+        if (encoded.length > 0xFFFF) throw new IOException("String of " + encoded.length + " bytes is too long to record");
+        return record.putShort((short) encoded.length).put(encoded);
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[Short.toUnsignedInt(record.getShort())];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
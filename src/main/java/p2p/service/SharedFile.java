@@ -0,0 +1,33 @@
+package p2p.service;
+
+/**
+ * One stored file of a share: the name the uploader gave it, where it lives on disk
+ * and, for files in the {@link BlobStore}, the SHA-256, CRC32C and CRC-32 of its content.
+ * CRC32C is what transfers are verified with, CRC-32 is what ZIP entries record.
+ */
+public class SharedFile {
+    public final String fileName;
+    public final String path;
+    public final long size;
+    public final String hash;
+    // Checksums are -1 when not known, for files stored before they were kept
+    public final long crc32c;
+    public final long crc32;
+
+    public SharedFile(String fileName, String path, long size) {
+        this(fileName, path, size, null);
+    }
+
+    public SharedFile(String fileName, String path, long size, String hash) {
+        this(fileName, path, size, hash, -1, -1);
+    }
+
+    public SharedFile(String fileName, String path, long size, String hash, long crc32c, long crc32) {
+        this.fileName = fileName;
+        this.path = path;
+        this.size = size;
+        this.hash = hash;
+        this.crc32c = crc32c;
+        this.crc32 = crc32;
+    }
+}
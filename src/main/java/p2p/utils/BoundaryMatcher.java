@@ -0,0 +1,53 @@
+package p2p.utils;
+
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool search for a fixed byte sequence.
+ *
+ * The skip table is built once per pattern, so one matcher is reused for every
+ * chunk of a request. Multipart delimiters are long and rarely share bytes with
+ * binary payloads, which lets most probes jump a full pattern length ahead.
+ */
+public final class BoundaryMatcher {
+
+    private final byte[] pattern;
+    private final int[] skip;
+
+    public BoundaryMatcher(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        this.skip = new int[256];
+        Arrays.fill(skip, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            skip[pattern[i] & 0xff] = pattern.length - 1 - i;
+        }
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Returns the index of the first match in data[from, to), or -1.
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        int i = from;
+        while (i <= to - pattern.length) {
+            byte tail = data[i + last];
+            if (tail == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && data[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) return i;
+            }
+            i += skip[tail & 0xff];
+        }
+        return -1;
+    }
+}
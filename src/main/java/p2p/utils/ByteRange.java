@@ -0,0 +1,72 @@
+package p2p.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inclusive byte range of a file, as used by the HTTP Range and Content-Range headers.
+ */
+public class ByteRange {
+
+    private static final int MAX_RANGES = 16;
+
+    public final long start;
+    public final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Resolves a "bytes=..." header against a file of the given size.
+     *
+     * Returns null when the header is malformed or asks for too many ranges, in which case
+     * it should be ignored and the whole file served. An empty list means none of the ranges
+     * can be satisfied (416).
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) return null;
+
+        List<ByteRange> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) return null;
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                long start;
+                long end;
+                if (first.isEmpty()) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) continue;
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                    if (!last.isEmpty() && Long.parseLong(last) < start) return null;
+                }
+                if (start < 0) return null;
+                if (start >= size) continue;
+                ranges.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+}
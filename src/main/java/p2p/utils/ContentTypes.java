@@ -0,0 +1,37 @@
+package p2p.utils;
+
+public class ContentTypes {
+
+    public static String forFileName(String fileName) {
+        String lower = fileName.toLowerCase();
+        if (lower.endsWith(".mp4")) return "video/mp4";
+        if (lower.endsWith(".webm")) return "video/webm";
+        if (lower.endsWith(".avi")) return "video/x-msvideo";
+        if (lower.endsWith(".mov")) return "video/quicktime";
+        if (lower.endsWith(".mkv")) return "video/x-matroska";
+        if (lower.endsWith(".mp3")) return "audio/mpeg";
+        if (lower.endsWith(".wav")) return "audio/wav";
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+        if (lower.endsWith(".png")) return "image/png";
+        if (lower.endsWith(".gif")) return "image/gif";
+        if (lower.endsWith(".pdf")) return "application/pdf";
+        if (lower.endsWith(".txt") || lower.endsWith(".log")) return "text/plain";
+        if (lower.endsWith(".csv")) return "text/csv";
+        if (lower.endsWith(".html")) return "text/html";
+        if (lower.endsWith(".json")) return "application/json";
+        if (lower.endsWith(".xml")) return "application/xml";
+        if (lower.endsWith(".zip")) return "application/zip";
+        if (lower.endsWith(".gz")) return "application/gzip";
+        return "application/octet-stream";
+    }
+
+    /**
+     * Whether gzip is worth the CPU. Media and archives are already compressed, and unknown
+     * binary content is assumed to be as well.
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.equals("application/json")
+                || contentType.equals("application/xml");
+    }
+}
@@ -0,0 +1,163 @@
+package p2p.utils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A small metrics registry rendered in the Prometheus text format.
+ *
+ * Instruments are created once at startup; recording only touches striped LongAdders, so it
+ * neither allocates nor contends on the transfer paths. Histograms use power-of-two
+ * microsecond buckets from 1 µs to about 36 minutes, which is enough resolution for p99s.
+ */
+public class Metrics {
+
+    private static final int BUCKETS = 32;
+    private static final String[] BUCKET_BOUNDS = new String[BUCKETS];
+
+    static {
+        for (int i = 0; i < BUCKETS; i++) {
+            BUCKET_BOUNDS[i] = BigDecimal.valueOf(1L << i).movePointLeft(6).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, "");
+    }
+
+    /**
+     * @param labels label pairs as they appear between the braces, e.g. {@code handler="upload"}
+     */
+    public synchronized Counter counter(String name, String help, String labels) {
+        Counter counter = new Counter();
+        family(name, help, "counter").add(labels, counter);
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name, String help, String labels) {
+        Histogram histogram = new Histogram();
+        family(name, help, "histogram").add(labels, histogram);
+        return histogram;
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, "", value);
+    }
+
+    public synchronized void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, help, "gauge").add(labels, value);
+    }
+
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (int i = 0; i < family.labels.size(); i++) {
+                String labels = family.labels.get(i);
+                Object instrument = family.instruments.get(i);
+                if (instrument instanceof Counter counter) {
+                    sample(out, family.name, labels, counter.value());
+                } else if (instrument instanceof LongSupplier gauge) {
+                    sample(out, family.name, labels, gauge.getAsLong());
+                } else if (instrument instanceof Histogram histogram) {
+                    histogram.writeTo(out, family.name, labels);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) throw new IllegalArgumentException(name + " is already a " + family.type);
+        return family;
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<String> labels = new ArrayList<>();
+        final List<Object> instruments = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        void add(String labelPairs, Object instrument) {
+            if (labels.contains(labelPairs)) throw new IllegalArgumentException(name + "{" + labelPairs + "} is already registered");
+            labels.add(labelPairs);
+            instruments.add(instrument);
+        }
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            // Smallest power of two that is >= micros, overflowing into +Inf
+            int index = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(index, BUCKETS)].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        void writeTo(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + BUCKET_BOUNDS[i] + "\"", cumulative);
+            }
+            cumulative += buckets[BUCKETS].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+            sample(out, name + "_sum", labels, sumNanos.sum() / 1e9);
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+}
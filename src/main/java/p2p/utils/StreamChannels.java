@@ -0,0 +1,87 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel views of the exchange streams for code that copies with ByteBuffers.
+ *
+ * Unlike {@link java.nio.channels.Channels#newChannel}, these hold no lock while the stream
+ * blocks. A virtual thread that blocks inside a monitor pins its carrier, and a throttled or
+ * slow client would otherwise hold a carrier for the whole transfer. Each view is meant for
+ * the one thread handling the exchange.
+ */
+public class StreamChannels {
+
+    private static final int MAX_COPY = 64 * 1024;
+
+    public static ReadableByteChannel readable(InputStream in) {
+        return new ReadableByteChannel() {
+            private byte[] copy = new byte[0];
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (!dst.hasRemaining()) return 0;
+                if (dst.hasArray()) {
+                    int count = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                    if (count > 0) dst.position(dst.position() + count);
+                    return count;
+                }
+                int length = Math.min(dst.remaining(), MAX_COPY);
+                if (copy.length < length) copy = new byte[length];
+                int count = in.read(copy, 0, length);
+                if (count > 0) dst.put(copy, 0, count);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                open = false;
+                in.close();
+            }
+        };
+    }
+
+    public static WritableByteChannel writable(OutputStream out) {
+        return new WritableByteChannel() {
+            private byte[] copy = new byte[0];
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int length = src.remaining();
+                if (src.hasArray()) {
+                    out.write(src.array(), src.arrayOffset() + src.position(), length);
+                    src.position(src.limit());
+                    return length;
+                }
+                length = Math.min(length, MAX_COPY);
+                if (copy.length < length) copy = new byte[length];
+                src.get(copy, 0, length);
+                out.write(copy, 0, length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                open = false;
+                out.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,198 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental multipart/form-data reader.
+ *
+ * The request body is pulled through a fixed-size buffer and the part delimiter is
+ * matched across chunk edges, so heap use stays constant no matter how large a part is.
+ * Parts are visited in order with {@link #nextPart()}; any unread data of the previous
+ * part is skipped automatically.
+ */
+public class StreamingMultiparser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+    private static final BoundaryMatcher HEADER_END = new BoundaryMatcher("\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+
+    private static final Pattern NAME_PARAM = Pattern.compile("(?i)(?:^|;)\\s*name=\"([^\"]*)\"");
+    private static final Pattern FILENAME_PARAM = Pattern.compile("(?i)(?:^|;)\\s*filename=\"([^\"]*)\"");
+
+    private final InputStream input;
+    private final BoundaryMatcher delimiter;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean finished;
+    private boolean atBoundary;
+
+    public StreamingMultiparser(InputStream input, String boundary) throws MultipartException {
+        // Longer boundaries aren't allowed (RFC 2046 5.1.1), and one near the buffer size would never match
+        if (boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new MultipartException("Boundary must be 1 to " + MAX_BOUNDARY_LENGTH + " characters");
+        }
+        this.input = input;
+        this.delimiter = new BoundaryMatcher(("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        this.buffer = new byte[BUFFER_SIZE];
+        // The first boundary is not preceded by CRLF; seed one so every delimiter looks the same
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Advances to the next part, or returns null once the closing boundary has been read.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) return null;
+
+        // Skip the preamble or whatever is left of the previous part
+        int count;
+        while ((count = available()) != -1) {
+            pos += count;
+        }
+
+        if (!ensure(2)) throw new MultipartException("Unexpected end of multipart body after boundary");
+        if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+
+        // Skip transport padding up to the CRLF that ends the boundary line
+        while (true) {
+            if (!ensure(2)) throw new MultipartException("Unexpected end of multipart body after boundary");
+            if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') break;
+            if (buffer[pos] != ' ' && buffer[pos] != '\t') {
+                throw new MultipartException("Malformed boundary line");
+            }
+            pos++;
+        }
+
+        // Search from that CRLF so a part without headers ends immediately at "\r\n\r\n"
+        int headerEnd;
+        while ((headerEnd = HEADER_END.indexOf(buffer, pos, limit)) == -1) {
+            if (limit - pos >= MAX_HEADER_SIZE) throw new MultipartException("Part headers too large");
+            if (!fill()) throw new MultipartException("Unexpected end of multipart body in part headers");
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        int headerStart = pos + 2;
+        if (headerEnd > headerStart) {
+            String block = new String(buffer, headerStart, headerEnd - headerStart, StandardCharsets.UTF_8);
+            for (String line : block.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        pos = headerEnd + HEADER_END.length();
+        atBoundary = false;
+
+        return new Part(headers);
+    }
+
+    /**
+     * Number of bytes of the current part that can be consumed at {@code pos}, or -1 once the
+     * delimiter that ends it has been reached (the delimiter itself is consumed).
+     */
+    private int available() throws IOException {
+        if (atBoundary) return -1;
+        while (true) {
+            int match = delimiter.indexOf(buffer, pos, limit);
+            if (match != -1) {
+                if (match > pos) return match - pos;
+                pos = match + delimiter.length();
+                atBoundary = true;
+                return -1;
+            }
+            // Keep back enough bytes to recognise a delimiter split across two reads
+            int safe = limit - pos - (delimiter.length() - 1);
+            if (safe > 0) return safe;
+            if (!fill()) throw new MultipartException("Unexpected end of multipart body, closing boundary missing");
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    public class Part {
+        public final Map<String, String> headers;
+        public final String name;
+        public final String fileName;
+        public final String contentType;
+
+        private Part(Map<String, String> headers) {
+            this.headers = headers;
+            String disposition = headers.getOrDefault("content-disposition", "");
+            this.name = param(NAME_PARAM, disposition);
+            this.fileName = param(FILENAME_PARAM, disposition);
+            this.contentType = headers.getOrDefault("content-type", "application/octet-stream");
+        }
+
+        public boolean isFile() {
+            return fileName != null;
+        }
+
+        /**
+         * Streams the body of this part to the channel and returns the number of bytes written.
+         */
+        public long transferTo(WritableByteChannel channel) throws IOException {
+            long total = 0;
+            int count;
+            while ((count = available()) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, pos, count);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                pos += count;
+                total += count;
+            }
+            return total;
+        }
+
+        private String param(Pattern pattern, String disposition) {
+            Matcher matcher = pattern.matcher(disposition);
+            return matcher.find() ? matcher.group(1) : null;
+        }
+    }
+
+    public static class MultipartException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MultipartException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package p2p.utils;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits a byte stream to an average rate, allowing bursts of up to one bucket.
+ *
+ * Callers take their bytes right away and may drive the bucket into debt; each one then
+ * waits until the debt it ran up has been paid back. Waiting happens outside the lock, so
+ * concurrent streams sharing a bucket are served roughly in the order they asked.
+ */
+public class TokenBucket {
+
+    private final double bytesPerNano;
+    private final double capacity;
+    private final LongSupplier clock;
+    private double available;
+    private long refilledAt;
+
+    /**
+     * A bucket that holds one second of traffic.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this(bytesPerSecond, bytesPerSecond, System::nanoTime);
+    }
+
+    TokenBucket(long bytesPerSecond, long capacity, LongSupplier clock) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond must be positive");
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.capacity = Math.max(1, capacity);
+        this.clock = clock;
+        this.available = this.capacity;
+        this.refilledAt = clock.getAsLong();
+    }
+
+    /**
+     * Takes the bytes and returns how many nanoseconds the caller has to wait before using them.
+     */
+    public synchronized long reserve(long bytes) {
+        long now = clock.getAsLong();
+        available = Math.min(capacity, available + (now - refilledAt) * bytesPerNano);
+        refilledAt = now;
+        available -= bytes;
+        return available >= 0 ? 0 : (long) Math.ceil(-available / bytesPerNano);
+    }
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        long wait = reserve(bytes);
+        if (wait <= 0) return;
+        try {
+            Thread.sleep(Duration.ofNanos(wait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
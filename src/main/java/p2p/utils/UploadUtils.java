@@ -1,14 +1,74 @@
 package p2p.utils;
 
-import java.util.Random;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 
 public class UploadUtils {
 
-    public static int generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
+    // Crockford's base32: no i, l, o or u, so codes survive being read out or retyped
+    private static final char[] ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+    private static final int CODE_LENGTH = 13;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // As long as most file systems allow
+    public static final int MAX_FILE_NAME_LENGTH = 255;
 
-        Random random = new Random();
-        return DYNAMIC_STARTING_PORT + random.nextInt(DYNAMIC_ENDING_PORT - DYNAMIC_STARTING_PORT + 1);
+    /**
+     * Returns a random 64-bit share code as 13 base32 characters. Codes grant access to the
+     * files, so they come from a SecureRandom; with 2^64 of them collisions are negligible
+     * at any realistic number of live shares, and callers only retry on the rare clash.
+     */
+    public static String generateCode(){
+        long bits = RANDOM.nextLong();
+        char[] code = new char[CODE_LENGTH];
+        for (int i = CODE_LENGTH - 1; i >= 0; i--) {
+            code[i] = ALPHABET[(int) (bits & 31)];
+            bits >>>= 5;
+        }
+        return new String(code);
+    }
+
+    public static boolean isValidCode(String code){
+        if (code == null || code.length() != CODE_LENGTH) return false;
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            char c = code.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z' && c != 'i' && c != 'l' && c != 'o' && c != 'u'))) {
+                return false;
+            }
+        }
+        // The first character only carries the top 4 bits
+        return code.charAt(0) <= 'f';
+    }
+
+    /**
+     * The name a file is stored under. Names end up in the line-based peer replies and in
+     * response headers, so control characters, CR and LF among them, are dropped rather
+     * than let through to split a line. Names are cut to {@value #MAX_FILE_NAME_LENGTH}
+     * characters, which the share journal can always record.
+     */
+    public static String sanitizeFileName(String fileName) {
+        if (fileName == null) return "unnamed-file";
+        StringBuilder sanitized = new StringBuilder(Math.min(fileName.length(), MAX_FILE_NAME_LENGTH));
+        fileName.codePoints()
+                .filter(c -> !Character.isISOControl(c) && c != '\u2028' && c != '\u2029')
+                .limit(MAX_FILE_NAME_LENGTH)
+                .forEach(sanitized::appendCodePoint);
+        String name = sanitized.toString().trim();
+        return name.isEmpty() ? "unnamed-file" : name;
+    }
+
+    /**
+     * A Content-Disposition attachment for the file name: a quoted ASCII fallback with quotes
+     * and backslashes escaped, and the exact name in RFC 5987 form for clients that read it.
+     */
+    public static String contentDisposition(String fileName) {
+        String name = sanitizeFileName(fileName);
+        StringBuilder fallback = new StringBuilder(name.length());
+        for (char c : name.toCharArray()) {
+            if (c == '"' || c == '\\') fallback.append('\\');
+            fallback.append(c < 0x80 ? c : '_');
+        }
+        String encoded = URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20").replace("*", "%2A");
+        return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
     }
 }
@@ -0,0 +1,79 @@
+package p2p.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Entry names and sizes for archives streamed with {@link java.util.zip.ZipOutputStream}.
+ *
+ * An archive of STORED entries, without extra fields or comments, has a length that follows
+ * from the entry names and sizes alone: a local header and the data for each entry, then a
+ * central directory header for each entry and the end record. That lets a download announce
+ * its Content-Length before the first byte is written.
+ */
+public class ZipLayout {
+
+    private static final int LOCAL_HEADER = 30;
+    private static final int CENTRAL_HEADER = 46;
+    private static final int END_RECORD = 22;
+    // From these on ZipOutputStream writes ZIP64 records instead
+    private static final long ZIP64_SIZE = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES = 0xFFFF;
+    // DOS times are local, these leave a day either side for the time zone
+    private static final long DOS_TIME_MIN = 315_619_200_000L;
+    private static final long DOS_TIME_MAX = 4_354_732_800_000L;
+
+    /**
+     * Length of an archive of STORED entries with these names and sizes, or -1 when it would
+     * need ZIP64 records.
+     */
+    public static long storedLength(List<String> names, List<Long> sizes) {
+        if (names.size() >= ZIP64_ENTRIES) return -1;
+        long length = END_RECORD;
+        for (int i = 0; i < names.size(); i++) {
+            int nameLength = names.get(i).getBytes(StandardCharsets.UTF_8).length;
+            length += LOCAL_HEADER + nameLength + sizes.get(i) + CENTRAL_HEADER + nameLength;
+        }
+        return length < ZIP64_SIZE ? length : -1;
+    }
+
+    /**
+     * A modification time ZipOutputStream writes as a plain DOS time. Times it can't, before
+     * 1980 or past 2107, would add an extended timestamp field {@link #storedLength} doesn't count.
+     */
+    public static long entryTime(long modified) {
+        return modified > DOS_TIME_MIN && modified < DOS_TIME_MAX ? modified : System.currentTimeMillis();
+    }
+
+    /**
+     * Entry names for the uploaded file names. Directories in a name are kept, but empty, "."
+     * and ".." segments are dropped so nothing extracts outside the target directory, and a
+     * repeated name gets a " (n)" suffix.
+     */
+    public static List<String> entryNames(List<String> fileNames) {
+        Set<String> used = new HashSet<>();
+        List<String> names = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            List<String> segments = new ArrayList<>();
+            for (String segment : fileName.split("[/\\\\]")) {
+                if (!segment.isEmpty() && !segment.equals(".") && !segment.equals("..")) segments.add(segment);
+            }
+            String name = segments.isEmpty() ? "unnamed-file" : String.join("/", segments);
+
+            // Compared ignoring case, as the file systems most archives are extracted on do
+            String unique = name;
+            for (int n = 2; !used.add(unique.toLowerCase(Locale.ROOT)); n++) {
+                int dot = name.lastIndexOf('.');
+                unique = dot > name.lastIndexOf('/') + 1
+                        ? name.substring(0, dot) + " (" + n + ")" + name.substring(dot)
+                        : name + " (" + n + ")";
+            }
+            names.add(unique);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,73 @@
+package p2p.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class AsyncHttpServerTest {
+
+    private static AsyncHttpServer echoServer() throws IOException {
+        AsyncHttpServer server = AsyncHttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/echo", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            byte[] response = body.length > 0 ? body : exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+            // A query asks for the length to be left open, which means a chunked response
+            exchange.sendResponseHeaders(200, exchange.getRequestURI().getQuery() != null ? 0 : response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static String exchange(AsyncHttpServer server, String requests) throws IOException {
+        try (Socket socket = new Socket("localhost", server.getAddress().getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.ISO_8859_1));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrderOnOneConnection() throws IOException {
+        AsyncHttpServer server = echoServer();
+        try {
+            String responses = exchange(server,
+                    "GET /echo/first HTTP/1.1\r\nHost: x\r\n\r\n"
+                            + "GET /missing HTTP/1.1\r\nHost: x\r\n\r\n"
+                            + "GET /echo/second HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+
+            int first = responses.indexOf("/echo/first");
+            int missing = responses.indexOf("HTTP/1.1 404");
+            int second = responses.indexOf("/echo/second");
+            assertTrue(first > 0 && missing > first && second > missing, responses);
+            assertTrue(responses.endsWith("/echo/second"), responses);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void decodesChunkedRequestsAndChunksResponsesOfUnknownLength() throws IOException {
+        AsyncHttpServer server = echoServer();
+        try {
+            String response = exchange(server,
+                    "POST /echo?chunked HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\nConnection: close\r\n\r\n"
+                            + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\n\r\n");
+
+            assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+            assertTrue(response.contains("Transfer-encoding: chunked\r\n"), response);
+            assertEquals("b\r\nhello world\r\n0\r\n\r\n", response.substring(response.indexOf("\r\n\r\n") + 4));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+
+public class AdmissionControlTest {
+
+    private static final InetAddress ALICE = InetAddress.getLoopbackAddress();
+    private static final InetAddress BOB = address(10, 0, 0, 2);
+    private static final InetAddress CAROL = address(10, 0, 0, 3);
+
+    @Test
+    public void limitsEachClientBeforeTheServer() throws Exception {
+        AdmissionControl admission = new AdmissionControl(2, 1, 1000, 1000, 0, 0);
+
+        AdmissionControl.Permit alice = admission.admit(ALICE, 0);
+        assertEquals(429, assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(ALICE, 0)).status);
+
+        admission.admit(BOB, 0);
+        assertEquals(503, assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(CAROL, 0)).status);
+
+        alice.close();
+        alice.close();
+        assertEquals(1, admission.active());
+        admission.admit(CAROL, 0);
+    }
+
+    @Test
+    public void budgetsDeclaredBodyBytes() throws Exception {
+        AdmissionControl admission = new AdmissionControl(10, 10, 1000, 600, 0, 0);
+
+        assertEquals(413, assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(ALICE, 601)).status);
+
+        AdmissionControl.Permit first = admission.admit(ALICE, 500);
+        assertEquals(429, assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(ALICE, 200)).status);
+        admission.admit(BOB, 400);
+        assertEquals(503, assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(CAROL, 200)).status);
+        assertEquals(900, admission.bytesInFlight());
+
+        first.close();
+        admission.admit(CAROL, 200);
+        assertEquals(600, admission.bytesInFlight());
+    }
+
+    private static InetAddress address(int... octets) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) octets[0], (byte) octets[1], (byte) octets[2], (byte) octets[3]});
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+public class BlobStoreTest {
+
+    @Test
+    public void storesIdenticalContentOnce() throws IOException {
+        Path root = Files.createTempDirectory("blob-store-test");
+        BlobStore store = new BlobStore(root.toString());
+
+        SharedFile first = store(store, "a.txt", "same bytes");
+        SharedFile second = store(store, "b.txt", "same bytes");
+
+        assertEquals(first.hash, second.hash);
+        assertEquals(first.path, second.path);
+        assertEquals("b.txt", second.fileName);
+        assertEquals(1, Files.list(root.resolve("blobs")).count());
+        assertEquals(0, Files.list(root.resolve("incoming")).count());
+    }
+
+    @Test
+    public void deletesBlobWhenLastReferenceIsReleased() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("blob-store-test").toString());
+
+        SharedFile uploaded = store(store, "a.txt", "content");
+        SharedFile reused = store.acquire(uploaded.hash, "copy.txt");
+        assertEquals(uploaded.size, reused.size);
+
+        store.release(uploaded);
+        assertTrue(Files.exists(Path.of(uploaded.path)));
+        store.release(reused);
+        assertFalse(Files.exists(Path.of(uploaded.path)));
+        assertNull(store.acquire(uploaded.hash, "gone.txt"));
+    }
+
+    @Test
+    public void checksumsContentWhileWritingAndKeepsItForReuse() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("blob-store-test").toString());
+        CRC32C crc = new CRC32C();
+        crc.update("checked bytes".getBytes(StandardCharsets.UTF_8));
+
+        SharedFile uploaded = store(store, "a.txt", "checked bytes");
+        assertEquals(crc.getValue(), uploaded.crc32c);
+        assertEquals(crc.getValue(), store.acquire(uploaded.hash, "copy.txt").crc32c);
+    }
+
+    @Test
+    public void keepsGzipCopyOnlyWhenItIsSmaller() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("blob-store-test").toString());
+
+        SharedFile text = store(store, "a.log", "GET /index.html 200\n".repeat(1000));
+        store.compress(text);
+        Path compressed = Path.of(BlobStore.compressedPath(text.path));
+        assertTrue(Files.size(compressed) < text.size / 10);
+
+        SharedFile tiny = store(store, "b.log", "x");
+        store.compress(tiny);
+        assertFalse(Files.exists(Path.of(BlobStore.compressedPath(tiny.path))));
+
+        store.release(text);
+        assertFalse(Files.exists(compressed));
+    }
+
+    @Test
+    public void rejectsHashesThatAreNotSha256Hex() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("blob-store-test").toString());
+
+        assertNull(store.acquire("../../etc/passwd", "x"));
+        assertFalse(BlobStore.isValidHash("ABC"));
+    }
+
+    private static SharedFile store(BlobStore store, String fileName, String content) throws IOException {
+        BlobStore.Upload upload = store.begin();
+        upload.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+        return upload.commit(fileName);
+    }
+}
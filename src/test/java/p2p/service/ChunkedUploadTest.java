@@ -0,0 +1,83 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+public class ChunkedUploadTest {
+
+    private static final int CHUNK = ChunkedUpload.MIN_CHUNK_SIZE;
+
+    @Test
+    public void assemblesChunksSentOutOfOrder() throws IOException {
+        byte[] content = new byte[CHUNK * 3 + 100];
+        new Random(5).nextBytes(content);
+        ChunkedUpload upload = upload(content.length);
+
+        assertEquals(4, upload.chunkCount());
+        for (int index : new int[]{3, 1, 0, 2}) {
+            assertTrue(send(upload, content, index, crc(content, index)));
+        }
+        assertTrue(upload.missingChunks().isEmpty());
+        assertTrue(upload.finish());
+        assertArrayEquals(content, Files.readAllBytes(upload.path));
+    }
+
+    @Test
+    public void reportsChunksThatFailedTheirChecksum() throws IOException {
+        byte[] content = new byte[CHUNK * 2];
+        ChunkedUpload upload = upload(content.length);
+
+        assertTrue(send(upload, content, 0, crc(content, 0)));
+        assertFalse(send(upload, content, 1, crc(content, 1) ^ 1));
+        assertEquals(List.of(1), upload.missingChunks());
+        assertFalse(upload.finish());
+
+        assertTrue(send(upload, content, 1, crc(content, 1)));
+        assertTrue(upload.finish());
+    }
+
+    @Test
+    public void rejectsChunksOfTheWrongLength() throws IOException {
+        ChunkedUpload upload = upload(CHUNK * 2);
+
+        assertThrows(ChunkedUpload.ChunkException.class,
+                () -> upload.writeChunk(0, Channels.newChannel(new ByteArrayInputStream(new byte[CHUNK + 1])), 0));
+        assertThrows(ChunkedUpload.ChunkException.class,
+                () -> upload.writeChunk(1, Channels.newChannel(new ByteArrayInputStream(new byte[10])), 0));
+        assertThrows(ChunkedUpload.ChunkException.class,
+                () -> upload.writeChunk(2, Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0));
+        assertEquals(List.of(0, 1), upload.missingChunks());
+    }
+
+    private static ChunkedUpload upload(long size) throws IOException {
+        Path path = Files.createTempDirectory("chunked-upload-test").resolve("upload");
+        return new ChunkedUpload("test", path, "big.bin", size, CHUNK, 0, 0);
+    }
+
+    private static boolean send(ChunkedUpload upload, byte[] content, int index, int crc) throws IOException {
+        int offset = index * CHUNK;
+        int length = Math.min(CHUNK, content.length - offset);
+        return upload.writeChunk(index, Channels.newChannel(new ByteArrayInputStream(content, offset, length)), crc);
+    }
+
+    private static int crc(byte[] content, int index) {
+        int offset = index * CHUNK;
+        CRC32C crc = new CRC32C();
+        crc.update(content, offset, Math.min(CHUNK, content.length - offset));
+        return (int) crc.getValue();
+    }
+}
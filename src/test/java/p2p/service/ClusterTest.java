@@ -0,0 +1,53 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.UploadUtils;
+
+public class ClusterTest {
+
+    private static final List<String> NODES = List.of("localhost:9091", "localhost:9092", "localhost:9093");
+
+    @Test
+    public void everyNodeAgreesOnTheOwnerOfACode() {
+        Cluster first = new Cluster("localhost:9091", NODES, 2);
+        Cluster second = new Cluster("localhost:9092", NODES, 2);
+
+        Map<InetSocketAddress, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String code = UploadUtils.generateCode();
+            InetSocketAddress owner = first.owner(code);
+            assertEquals(owner, second.owner(code));
+            assertEquals(owner.equals(first.self), first.owns(code));
+            owned.merge(owner, 1, Integer::sum);
+        }
+        // Each node gets roughly a third of the codes
+        assertEquals(3, owned.size());
+        owned.values().forEach(count -> assertTrue(count > 700, owned.toString()));
+    }
+
+    @Test
+    public void replicasFollowTheOwnerOnTheRing() throws UnknownHostException {
+        Cluster cluster = new Cluster("localhost:9091", NODES, 2);
+        String code = UploadUtils.generateCode();
+
+        List<InetSocketAddress> nodes = cluster.nodesFor(code);
+        assertEquals(3, nodes.size());
+        assertEquals(cluster.owner(code), nodes.get(0));
+        assertEquals(List.of(nodes.get(1)), cluster.replicasOf(code));
+        assertFalse(cluster.isMember(new InetSocketAddress("localhost", 9094)));
+        assertTrue(cluster.isMemberHost(InetAddress.getLoopbackAddress()));
+        assertFalse(cluster.isMemberHost(InetAddress.getByAddress(new byte[]{10, 1, 2, 3})));
+    }
+}
@@ -0,0 +1,106 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.Metrics;
+import p2p.utils.UploadUtils;
+
+public class FileSharerTest {
+
+    @Test
+    public void countsEveryTransferWithFileBytesTowardTheLimit() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("file-sharer-test").toString());
+        FileSharer sharer = new FileSharer(0, store);
+        sharer.start();
+        try {
+            String code = sharer.offerFiles(List.of(store(store, "limited content")), 2, 0);
+            InetSocketAddress address = new InetSocketAddress("localhost", sharer.getPort());
+
+            try (PeerConnection metadata = PeerConnection.open(address, code, 0, 0, 0)) {
+                assertFalse(metadata.isError());
+                assertEquals("2", metadata.header("max-downloads"));
+            }
+            assertEquals("limited content", download(address, code, 0));
+            // A resume from an offset is a download like any other
+            assertEquals("imited content", download(address, code, 1));
+            try (PeerConnection connection = PeerConnection.open(address, code, 0, 1, -1)) {
+                assertTrue(connection.isError());
+            }
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void failsADownloadWhoseBlobWasCorruptedOnDisk() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("file-sharer-test").toString());
+        FileSharer sharer = new FileSharer(0, store);
+        sharer.start();
+        try {
+            SharedFile file = store(store, "content that rots on disk");
+            String code = sharer.offerFiles(List.of(file), 0, 0);
+            try (FileChannel blob = FileChannel.open(Path.of(file.path), StandardOpenOption.WRITE)) {
+                blob.write(ByteBuffer.wrap(new byte[]{'C'}), 0);
+            }
+
+            InetSocketAddress address = new InetSocketAddress("localhost", sharer.getPort());
+            try (PeerConnection connection = PeerConnection.open(address, code, 0, 0, -1)) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                IOException e = assertThrows(IOException.class, () -> connection.transferTo(Channels.newChannel(content)));
+                assertTrue(e.getMessage().contains("crc32c"), e.getMessage());
+                // Nothing of the corrupted content goes out
+                assertEquals(0, content.size());
+            }
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    @Test
+    public void refusesReplicationAskedForByANonMember() throws IOException {
+        BlobStore store = new BlobStore(Files.createTempDirectory("file-sharer-test").toString());
+        Cluster cluster = new Cluster("10.255.0.1:9090", List.of("10.255.0.1:9090", "10.255.0.2:9090"), 2);
+        FileSharer sharer = new FileSharer(0, store, null, new Metrics(), cluster);
+        sharer.start();
+        try {
+            InetSocketAddress address = new InetSocketAddress("localhost", sharer.getPort());
+            try (PeerConnection reply = PeerConnection.replicate(address, UploadUtils.generateCode(), 1, "10.255.0.2:9090")) {
+                assertTrue(reply.isError());
+            }
+        } finally {
+            sharer.stop();
+        }
+    }
+
+    private static String download(InetSocketAddress address, String code, long offset) throws IOException {
+        try (PeerConnection connection = PeerConnection.open(address, code, 0, offset, -1)) {
+            assertFalse(connection.isError(), connection.header("error"));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            connection.transferTo(Channels.newChannel(content));
+            return content.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static SharedFile store(BlobStore store, String content) throws IOException {
+        BlobStore.Upload upload = store.begin();
+        upload.write(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+        return upload.commit("file.txt");
+    }
+}
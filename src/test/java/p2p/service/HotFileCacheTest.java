@@ -0,0 +1,80 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.Metrics;
+
+public class HotFileCacheTest {
+
+    @Test
+    public void loadsAFileOnItsSecondMiss() throws IOException {
+        HotFileCache cache = new HotFileCache(1024, 1024, new Metrics());
+        SharedFile file = file("a", "hot content");
+
+        assertNull(cache.get(file));
+        HotFileCache.Entry entry = cache.get(file);
+        assertNotNull(entry);
+        assertSame(entry, cache.get(file));
+
+        ByteBuffer content = entry.content();
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        assertEquals("hot content", new String(bytes, StandardCharsets.UTF_8));
+        // Every reader gets its own position
+        assertEquals(11, entry.content().remaining());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFilesOverBudget() throws IOException {
+        HotFileCache cache = new HotFileCache(20, 20, new Metrics());
+        SharedFile first = file("a", "0123456789");
+        SharedFile second = file("b", "abcdefghij");
+        SharedFile third = file("c", "ABCDEFGHIJ");
+        SharedFile tooLarge = file("d", "x".repeat(21));
+
+        load(cache, first);
+        load(cache, second);
+        cache.get(first);
+        load(cache, third);
+
+        assertEquals(2, cache.size());
+        assertEquals(20, cache.used());
+        assertNotNull(cache.get(first));
+        assertNotNull(cache.get(third));
+        assertNull(load(cache, tooLarge));
+    }
+
+    @Test
+    public void retriesAFileWhoseLoadThrew() throws IOException {
+        HotFileCache cache = new HotFileCache(1024, 1024, new Metrics());
+        SharedFile broken = new SharedFile("f.txt", "bad\0path", 4, "a");
+
+        cache.get(broken);
+        assertThrows(InvalidPathException.class, () -> cache.get(broken));
+        assertNotNull(load(cache, file("a", "good")));
+    }
+
+    private static HotFileCache.Entry load(HotFileCache cache, SharedFile file) {
+        cache.get(file);
+        return cache.get(file);
+    }
+
+    private static SharedFile file(String hash, String content) throws IOException {
+        Path path = Files.createTempFile("hot-file-cache-test", ".txt");
+        Files.writeString(path, content);
+        return new SharedFile("f.txt", path.toString(), Files.size(path), hash);
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class PeerConnectionTest {
+
+    @Test
+    public void failsWhenThePeerClosesBeforeTheEndOfTheHeaders() throws Exception {
+        assertEquals("Peer closed before replying", reply("").getMessage());
+        assertEquals("Peer closed before replying", reply("filename: a.txt\nsize: 3\n").getMessage());
+    }
+
+    @Test
+    public void failsOnAReplyWithoutASize() throws Exception {
+        assertEquals("Peer reply has no size", reply("filename: a.txt\n\n").getMessage());
+    }
+
+    /**
+     * Answers one request with the given bytes and closes, then returns what opening it threw.
+     */
+    private static IOException reply(String response) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread peer = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    // Reads the request up to its empty line
+                    for (int previous = 0, b; (b = in.read()) != -1; previous = b) {
+                        if (b == '\n' && previous == '\n') break;
+                    }
+                    socket.getOutputStream().write(response.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    // The test fails on the client side
+                }
+            });
+            peer.start();
+            InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+            IOException e = assertThrows(IOException.class, () -> PeerConnection.open(address, "code", 0, 0, -1).close());
+            peer.join();
+            return e;
+        }
+    }
+}
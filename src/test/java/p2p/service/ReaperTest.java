@@ -0,0 +1,109 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.utils.Metrics;
+
+public class ReaperTest {
+
+    @Test
+    public void expiresSharesNobodyAsksFor() throws Exception {
+        BlobStore store = new BlobStore(Files.createTempDirectory("reaper-test").toString());
+        FileSharer sharer = new FileSharer(0, store);
+        SharedFile file = store(store, 'a');
+        sharer.offerFiles(List.of(file), 0, 1);
+        sharer.offerFiles(List.of(store(store, 'b')), 0, 60_000);
+
+        Thread.sleep(5);
+        assertEquals(1, sharer.expireDue(System.currentTimeMillis(), 10));
+        assertFalse(Files.exists(Path.of(file.path)));
+        assertEquals(100, store.storedBytes());
+        assertEquals(0, sharer.expireDue(System.currentTimeMillis(), 10));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSharesOverQuota() throws Exception {
+        BlobStore store = new BlobStore(Files.createTempDirectory("reaper-test").toString());
+        FileSharer sharer = new FileSharer(0, store);
+        String first = sharer.offerFiles(List.of(store(store, 'a')));
+        String second = sharer.offerFiles(List.of(store(store, 'b')));
+        String third = sharer.offerFiles(List.of(store(store, 'c')));
+        Thread.sleep(5);
+        sharer.claimDownload(second, 0);
+        sharer.claimDownload(first, 0);
+
+        // Over 90% of 250 bytes, evicts down to 80%
+        Reaper reaper = new Reaper(sharer, store, new ConcurrentHashMap<>(), 250, 0.9, 0.8, 60_000, new Metrics());
+        reaper.runPass();
+
+        assertNull(sharer.find(third, 0));
+        assertNotNull(sharer.find(first, 0));
+        assertNotNull(sharer.find(second, 0));
+        assertEquals(200, store.storedBytes());
+    }
+
+    @Test
+    public void sweepsOnlyIdleOrphans() throws Exception {
+        Path root = Files.createTempDirectory("reaper-test");
+        BlobStore store = new BlobStore(root.toString());
+        SharedFile kept = store(store, 'a');
+        Path orphanBlob = root.resolve("blobs").resolve("0".repeat(64));
+        Files.write(orphanBlob, new byte[10]);
+        Path staleUpload = store.incomingFile();
+        Path liveUpload = store.incomingFile();
+        Files.write(staleUpload, new byte[10]);
+        Files.write(liveUpload, new byte[10]);
+
+        assertEquals(0, store.sweepIncoming(60_000, Set.of(), 10));
+        assertEquals(0, store.sweepBlobs(60_000, 10));
+
+        Thread.sleep(5);
+        assertEquals(1, store.sweepIncoming(1, Set.of(liveUpload), 10));
+        assertEquals(1, store.sweepBlobs(1, 10));
+        assertFalse(Files.exists(staleUpload));
+        assertFalse(Files.exists(orphanBlob));
+        assertTrue(Files.exists(liveUpload));
+        assertTrue(Files.exists(Path.of(kept.path)));
+    }
+
+    @Test
+    public void countsChunkedUploadsUnderWayAgainstTheQuota() throws Exception {
+        BlobStore store = new BlobStore(Files.createTempDirectory("reaper-test").toString());
+        FileSharer sharer = new FileSharer(0, store);
+        String first = sharer.offerFiles(List.of(store(store, 'a')));
+        Thread.sleep(5);
+        String second = sharer.offerFiles(List.of(store(store, 'b')));
+        Map<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+        uploads.put("up", new ChunkedUpload("up", store.incomingFile(), "up.bin", 100, ChunkedUpload.MIN_CHUNK_SIZE, 0, 0));
+
+        Reaper reaper = new Reaper(sharer, store, uploads, 250, 0.9, 0.8, 60_000, new Metrics());
+        assertTrue(reaper.fitsQuota(150));
+        assertFalse(reaper.fitsQuota(151));
+
+        // 200 stored and 100 reserved is over 90% of 250, the oldest share makes room
+        reaper.runPass();
+        assertNull(sharer.find(first, 0));
+        assertNotNull(sharer.find(second, 0));
+    }
+
+    private static SharedFile store(BlobStore store, char fill) throws IOException {
+        BlobStore.Upload upload = store.begin();
+        upload.write(ByteBuffer.wrap(String.valueOf(fill).repeat(100).getBytes()));
+        return upload.commit(fill + ".txt");
+    }
+}
@@ -0,0 +1,163 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+public class ShareJournalTest {
+
+    private static final String HASH = "ab".repeat(32);
+
+    @Test
+    public void replaysOffersDownloadsAndRemovals() throws IOException {
+        Path path = Files.createTempDirectory("journal-test-").resolve("shares.journal");
+        try (ShareJournal journal = new ShareJournal(path)) {
+            journal.replay(file -> { });
+            journal.recordOffer("7", share(3, 5_000));
+            journal.recordOffer("8", share(0, 0));
+            journal.recordDownload("7", 0, 1);
+            journal.recordDownload("7", 0, 2);
+            journal.recordRemove("8");
+        }
+
+        try (ShareJournal journal = new ShareJournal(path)) {
+            Map<String, Share> shares = journal.replay(file -> { });
+            assertEquals(1, shares.size());
+            Share share = shares.get("7");
+            assertEquals(3, share.maxDownloads);
+            assertEquals(5_000, share.expiresAt);
+            assertEquals(2, share.downloads(0));
+            assertEquals("report.pdf", share.file(0).fileName);
+            assertEquals(HASH, share.file(0).hash);
+            assertEquals(0xcafe_f00dL, share.file(0).crc32c);
+            assertEquals(0x1234_5678L, share.file(0).crc32);
+            assertNull(share.file(1).hash);
+            assertEquals(-1, share.file(1).crc32c);
+        }
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+        Path path = Files.createTempDirectory("journal-test-").resolve("shares.journal");
+        long intact;
+        try (ShareJournal journal = new ShareJournal(path)) {
+            journal.replay(file -> { });
+            journal.recordOffer("7", share(0, 0));
+            intact = journal.size();
+            journal.recordOffer("8", share(0, 0));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            // Flip a byte inside the second record, as a crash mid-write would leave it
+            channel.write(ByteBuffer.wrap(new byte[]{0x55}), intact + 20);
+        }
+
+        try (ShareJournal journal = new ShareJournal(path)) {
+            Map<String, Share> shares = journal.replay(file -> { });
+            assertEquals(List.of("7"), List.copyOf(shares.keySet()));
+            assertEquals(intact, journal.size());
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyLiveShares() throws IOException {
+        Path path = Files.createTempDirectory("journal-test-").resolve("shares.journal");
+        Map<String, Share> live = new ConcurrentHashMap<>();
+        try (ShareJournal journal = new ShareJournal(path)) {
+            journal.replay(file -> { });
+            for (int i = 0; i < 1_000; i++) {
+                String code = "code-" + i;
+                Share share = share(5, 0);
+                journal.recordOffer(code, share);
+                if (i % 10 == 0) {
+                    live.put(code, share);
+                } else {
+                    journal.recordRemove(code);
+                }
+            }
+            long before = journal.size();
+            journal.compact(live);
+            assertTrue(journal.size() < before / 5);
+            journal.recordOffer("late", share(0, 0));
+        }
+
+        try (ShareJournal journal = new ShareJournal(path)) {
+            Map<String, Share> shares = journal.replay(file -> { });
+            assertEquals(101, shares.size());
+            assertTrue(shares.containsKey("late"));
+            assertFalse(shares.containsKey("code-1"));
+        }
+    }
+
+    @Test
+    public void keepsRecordsAppendedWhileCompacting() throws Exception {
+        Path path = Files.createTempDirectory("journal-test-").resolve("shares.journal");
+        Map<String, Share> live = new ConcurrentHashMap<>();
+        try (ShareJournal journal = new ShareJournal(path)) {
+            journal.replay(file -> { });
+            for (int i = 0; i < 20_000; i++) {
+                Share share = share(0, 0);
+                journal.recordOffer("code-" + i, share);
+                live.put("code-" + i, share);
+            }
+
+            Thread appender = new Thread(() -> {
+                try {
+                    for (int i = 1; i <= 5_000; i++) {
+                        journal.recordDownload("code-0", 0, i);
+                        if (i % 10 == 0) journal.recordOffer("late-" + i, share(0, 0));
+                        if (i % 10 == 5) journal.recordRemove("code-" + i);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            appender.start();
+            journal.compact(live);
+            appender.join();
+        }
+
+        try (ShareJournal journal = new ShareJournal(path)) {
+            Map<String, Share> shares = journal.replay(file -> { });
+            assertEquals(20_000 + 500 - 500, shares.size());
+            assertEquals(5_000, shares.get("code-0").downloads(0));
+            assertTrue(shares.containsKey("late-5000"));
+            assertFalse(shares.containsKey("code-4995"));
+        }
+    }
+
+    @Test
+    public void refusesToRecordAStringItCouldNotReadBack() throws IOException {
+        Path path = Files.createTempDirectory("journal-test-").resolve("shares.journal");
+        try (ShareJournal journal = new ShareJournal(path)) {
+            journal.replay(file -> { });
+            Share tooLong = new Share(List.of(new SharedFile("x".repeat(0x10000), "/incoming/x", 5)), 0, 0, file -> { });
+            assertThrows(IOException.class, () -> journal.recordOffer("7", tooLong));
+            journal.recordOffer("8", share(0, 0));
+        }
+
+        try (ShareJournal journal = new ShareJournal(path)) {
+            assertEquals(List.of("8"), List.copyOf(journal.replay(file -> { }).keySet()));
+        }
+    }
+
+    private static Share share(int maxDownloads, long expiresAt) {
+        return new Share(List.of(
+                new SharedFile("report.pdf", "/blobs/" + HASH, 1234, HASH, 0xcafe_f00dL, 0x1234_5678L),
+                new SharedFile("notes.txt", "/incoming/notes.txt", 5)
+        ), maxDownloads, expiresAt, file -> { });
+    }
+}
@@ -0,0 +1,66 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ShareTest {
+
+    @Test
+    public void limitsDownloadsPerFile() throws IOException {
+        Share share = new Share(List.of(sharedFile(), sharedFile()), 2, 0);
+
+        assertTrue(share.tryCountDownload(0));
+        assertTrue(share.tryCountDownload(0));
+        assertFalse(share.tryCountDownload(0));
+        assertFalse(share.isExhausted());
+
+        assertTrue(share.tryCountDownload(1));
+        assertTrue(share.tryCountDownload(1));
+        assertTrue(share.isExhausted());
+    }
+
+    @Test
+    public void expiresAfterTtl() throws IOException {
+        Share share = new Share(List.of(sharedFile()), 0, 1_000);
+
+        assertFalse(share.isExpired(999));
+        assertTrue(share.isExpired(1_000));
+        assertFalse(new Share(List.of(sharedFile())).isExpired(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void readersShareOneChannelAndRetiringWaitsForThem() throws IOException {
+        SharedFile file = sharedFile();
+        Share share = new Share(List.of(file));
+
+        FileChannel first = share.open(0);
+        FileChannel second = share.open(0);
+        assertSame(first, second);
+
+        share.retire();
+        assertNull(share.open(0));
+        share.release();
+        assertTrue(Files.exists(Path.of(file.path)));
+
+        share.release();
+        assertFalse(Files.exists(Path.of(file.path)));
+        assertFalse(first.isOpen());
+    }
+
+    private static SharedFile sharedFile() throws IOException {
+        Path path = Files.createTempFile("share-test-", ".txt");
+        Files.writeString(path, "shared content");
+        path.toFile().deleteOnExit();
+        return new SharedFile(path.getFileName().toString(), path.toString(), Files.size(path));
+    }
+}
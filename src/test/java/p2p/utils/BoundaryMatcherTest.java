@@ -0,0 +1,47 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BoundaryMatcherTest {
+
+    @Test
+    public void findsFirstOccurrenceInRange() {
+        byte[] data = "xx--abc--abc--".getBytes(StandardCharsets.ISO_8859_1);
+        BoundaryMatcher matcher = new BoundaryMatcher("--abc".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(2, matcher.indexOf(data, 0, data.length));
+        assertEquals(7, matcher.indexOf(data, 3, data.length));
+        assertEquals(-1, matcher.indexOf(data, 3, 11));
+    }
+
+    @Test
+    public void agreesWithNaiveSearchOnRandomData() {
+        Random random = new Random(1);
+        byte[] data = new byte[50_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) "\r\n-ab".charAt(random.nextInt(5));
+        }
+        byte[] pattern = "\r\n--ab".getBytes(StandardCharsets.ISO_8859_1);
+        BoundaryMatcher matcher = new BoundaryMatcher(pattern);
+
+        for (int from = 0; from < data.length; from += 997) {
+            assertEquals(naive(data, pattern, from), matcher.indexOf(data, from, data.length));
+        }
+    }
+
+    private static int naive(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,43 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void resolvesBoundedOpenAndSuffixRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 900-, -50", 1000);
+
+        assertEquals(3, ranges.size());
+        assertEquals("bytes 0-99/1000", ranges.get(0).contentRange(1000));
+        assertEquals("bytes 900-999/1000", ranges.get(1).contentRange(1000));
+        assertEquals("bytes 950-999/1000", ranges.get(2).contentRange(1000));
+    }
+
+    @Test
+    public void clampsEndToFileSize() {
+        ByteRange range = ByteRange.parse("bytes=500-5000", 1000).get(0);
+
+        assertEquals(500, range.start);
+        assertEquals(999, range.end);
+        assertEquals(500, range.length());
+    }
+
+    @Test
+    public void reportsUnsatisfiableRangesAsEmpty() {
+        assertTrue(ByteRange.parse("bytes=1000-1200", 1000).isEmpty());
+    }
+
+    @Test
+    public void ignoresMalformedHeaders() {
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=20-10", 1000));
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void rendersCountersAndGaugesInPrometheusFormat() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter uploads = metrics.counter("p2p_requests_total", "Requests.", "handler=\"upload\"");
+        metrics.counter("p2p_requests_total", "Requests.", "handler=\"download\"").add(5);
+        metrics.gauge("p2p_active_shares", "Shares.", () -> 7);
+        uploads.inc();
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# HELP p2p_requests_total Requests.\n# TYPE p2p_requests_total counter\n"), text);
+        assertTrue(text.contains("p2p_requests_total{handler=\"upload\"} 1\n"), text);
+        assertTrue(text.contains("p2p_requests_total{handler=\"download\"} 5\n"), text);
+        assertTrue(text.contains("# TYPE p2p_active_shares gauge\np2p_active_shares 7\n"), text);
+    }
+
+    @Test
+    public void bucketsLatenciesByPowersOfTwoMicroseconds() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("p2p_latency_seconds", "Latency.", "");
+        histogram.record(500);           // under 1 µs
+        histogram.record(3_000);         // 3 µs, in the 4 µs bucket
+        histogram.record(4_000);         // exactly 4 µs
+        histogram.record(5_000_000_000L);
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"0.000001\"} 1\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"0.000002\"} 1\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"0.000004\"} 3\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"4.194304\"} 3\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"8.388608\"} 4\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_bucket{le=\"+Inf\"} 4\n"), text);
+        assertTrue(text.contains("p2p_latency_seconds_count 4\n"), text);
+    }
+
+    @Test
+    public void rejectsDuplicateSeries() {
+        Metrics metrics = new Metrics();
+        metrics.counter("p2p_requests_total", "Requests.");
+
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("p2p_requests_total", "Requests."));
+        assertThrows(IllegalArgumentException.class, () -> metrics.gauge("p2p_requests_total", "Requests.", () -> 1));
+    }
+}
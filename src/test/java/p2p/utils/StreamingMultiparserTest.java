@@ -0,0 +1,98 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class StreamingMultiparserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Test
+    public void parsesFieldAndFilePart() throws IOException {
+        byte[] content = "hello\r\n--not-the-boundary\r\nworld".getBytes(StandardCharsets.ISO_8859_1);
+        StreamingMultiparser parser = new StreamingMultiparser(new ByteArrayInputStream(body(content)), BOUNDARY);
+
+        StreamingMultiparser.Part field = parser.nextPart();
+        assertEquals("comment", field.name);
+        assertNull(field.fileName);
+
+        StreamingMultiparser.Part file = parser.nextPart();
+        assertEquals("file", file.name);
+        assertEquals("report.txt", file.fileName);
+        assertEquals("text/plain", file.contentType);
+        assertArrayEquals(content, read(file));
+
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    public void matchesBoundarySplitAcrossReads() throws IOException {
+        byte[] content = new byte[200_000];
+        new Random(42).nextBytes(content);
+
+        // Hand out a few bytes at a time so the delimiter lands on every possible chunk edge
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(body(content))) {
+            private int step;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1 + (step++ % 97)));
+            }
+        };
+        StreamingMultiparser parser = new StreamingMultiparser(trickle, BOUNDARY);
+
+        parser.nextPart();
+        assertArrayEquals(content, read(parser.nextPart()));
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    public void rejectsBoundariesOutsideTheRfcLimit() {
+        ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+        assertThrows(StreamingMultiparser.MultipartException.class, () -> new StreamingMultiparser(empty, "b".repeat(71)));
+        assertThrows(StreamingMultiparser.MultipartException.class, () -> new StreamingMultiparser(empty, ""));
+    }
+
+    @Test
+    public void rejectsBodyWithoutClosingBoundary() throws IOException {
+        byte[] truncated = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\n\r\n"
+                + "partial data").getBytes(StandardCharsets.ISO_8859_1);
+        StreamingMultiparser parser = new StreamingMultiparser(new ByteArrayInputStream(truncated), BOUNDARY);
+
+        StreamingMultiparser.Part part = parser.nextPart();
+        assertThrows(StreamingMultiparser.MultipartException.class, () -> read(part));
+    }
+
+    private static byte[] body(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"comment\"\r\n\r\n"
+                + "quarterly numbers\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"report.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(content);
+        out.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] read(StreamingMultiparser.Part part) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+}
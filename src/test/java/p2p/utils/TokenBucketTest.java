@@ -0,0 +1,34 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void allowsOneBucketOfBurstThenPacesToTheRate() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(1000, 1000, now::get);
+
+        assertEquals(0, bucket.reserve(1000));
+        // Each caller waits for its own debt, so the second one queues behind the first
+        assertEquals(500_000_000L, bucket.reserve(500));
+        assertEquals(1_000_000_000L, bucket.reserve(500));
+
+        now.addAndGet(1_000_000_000L);
+        assertEquals(0, bucket.reserve(0));
+    }
+
+    @Test
+    public void refillsNoMoreThanItsCapacity() {
+        AtomicLong now = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(1000, 1000, now::get);
+
+        now.addAndGet(60_000_000_000L);
+        assertEquals(0, bucket.reserve(1000));
+        assertEquals(1_000_000L, bucket.reserve(1));
+    }
+}
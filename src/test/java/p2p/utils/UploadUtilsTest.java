@@ -0,0 +1,52 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class UploadUtilsTest {
+
+    @Test
+    public void generatesDistinctValidCodes() {
+        Set<String> codes = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            String code = UploadUtils.generateCode();
+            assertTrue(UploadUtils.isValidCode(code), code);
+            codes.add(code);
+        }
+        assertEquals(100_000, codes.size());
+    }
+
+    @Test
+    public void rejectsMalformedCodes() {
+        assertFalse(UploadUtils.isValidCode(null));
+        assertFalse(UploadUtils.isValidCode("54321"));
+        assertFalse(UploadUtils.isValidCode("0123456789abc0"));
+        assertFalse(UploadUtils.isValidCode("0123456789abu"));
+        assertFalse(UploadUtils.isValidCode("0123456789ABC"));
+        assertFalse(UploadUtils.isValidCode("g123456789abc"));
+        assertTrue(UploadUtils.isValidCode("f123456789abc"));
+    }
+
+    @Test
+    public void dropsControlCharactersFromFileNames() {
+        assertEquals("evillength: 3", UploadUtils.sanitizeFileName("evil\n\nlength: 3"));
+        assertEquals("a b.txt", UploadUtils.sanitizeFileName(" a\r\u0000 b.txt\t"));
+        assertEquals("unnamed-file", UploadUtils.sanitizeFileName("\n"));
+        assertEquals("unnamed-file", UploadUtils.sanitizeFileName(null));
+        assertEquals("é".repeat(UploadUtils.MAX_FILE_NAME_LENGTH), UploadUtils.sanitizeFileName("é".repeat(70_000)));
+    }
+
+    @Test
+    public void quotesFileNamesInContentDisposition() {
+        assertEquals("attachment; filename=\"a\\\"b\\\\c.txt\"; filename*=UTF-8''a%22b%5Cc.txt",
+                UploadUtils.contentDisposition("a\"b\\c.txt"));
+        assertEquals("attachment; filename=\"_t_.txt\"; filename*=UTF-8''%C3%A9t%C3%A9.txt",
+                UploadUtils.contentDisposition("été.txt"));
+    }
+}
@@ -0,0 +1,51 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class ZipLayoutTest {
+
+    @Test
+    public void predictsTheLengthZipOutputStreamWrites() throws IOException {
+        List<String> names = List.of("photo.jpg", "album/été.png", "empty.bin");
+        List<Long> sizes = List.of(5000L, 123L, 0L);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+            for (int i = 0; i < names.size(); i++) {
+                byte[] data = new byte[sizes.get(i).intValue()];
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                ZipEntry entry = new ZipEntry(names.get(i));
+                entry.setTime(ZipLayout.entryTime(0));
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCompressedSize(data.length);
+                entry.setCrc(crc.getValue());
+                zip.putNextEntry(entry);
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+
+        assertEquals(archive.size(), ZipLayout.storedLength(names, sizes));
+        assertEquals(-1, ZipLayout.storedLength(List.of("huge.mkv"), List.of(5L << 30)));
+    }
+
+    @Test
+    public void keepsEntriesInsideTheArchiveAndApartFromEachOther() {
+        List<String> names = ZipLayout.entryNames(List.of(
+                "report.pdf", "Report.pdf", "../../etc/passwd", "docs\\notes.txt", "/abs/./x", "..", "docs/notes.txt"));
+
+        assertEquals(List.of("report.pdf", "Report (2).pdf", "etc/passwd", "docs/notes.txt", "abs/x", "unnamed-file",
+                "docs/notes (2).txt"), names);
+    }
+}